@@ -0,0 +1,238 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.classification;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.util.Grids;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.Composite;
+import org.scijava.Context;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
+import sc.fiji.labkit.pixel_classification.utils.views.FastViews;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Two stage cascade of {@link Segmenter}s.
+ * <p>
+ * The first stage uses a cheap feature set and a small random forest to
+ * classify all pixels. Only the pixels, whose highest class probability is
+ * below the confidence threshold, are classified again by the second stage,
+ * which uses the full feature set and random forest. The image is split into
+ * large cells, 512 x 512 pixels in 2D and 128 x 128 x 128 pixels in 3D. The
+ * expensive features of the second stage are calculated once per cell, for
+ * the bounding box of the uncertain pixels in the cell. Cells without
+ * uncertain pixels are skipped. For images that are mostly unambiguous, this
+ * is much faster than using the second stage for all pixels.
+ * <p>
+ * The cells are large compared to the halo of the features, which is about
+ * three times the biggest sigma. Small tiles would spend most of the time on
+ * calculating the features of the halo.
+ */
+public class CascadeSegmenter {
+
+
+	private static final int SMALL_FOREST_NUMBER_OF_TREES = 32;
+
+	private final Segmenter cheap;
+
+	private final Segmenter full;
+
+	private final float confidenceThreshold;
+
+	/**
+	 * @param cheap Segmenter that is applied to all pixels.
+	 * @param full Segmenter that is applied to the uncertain pixels.
+	 * @param confidenceThreshold A pixel is uncertain, if the highest class
+	 *          probability calculated by the cheap segmenter is below this
+	 *          threshold.
+	 */
+	public CascadeSegmenter(Segmenter cheap, Segmenter full, double confidenceThreshold) {
+		if (!cheap.classNames().equals(full.classNames()))
+			throw new IllegalArgumentException(
+				"Both segmenters of a cascade must use the same class names.");
+		this.cheap = Objects.requireNonNull(cheap);
+		this.full = Objects.requireNonNull(full);
+		this.confidenceThreshold = (float) confidenceThreshold;
+	}
+
+	/**
+	 * Trains both stages of a {@link CascadeSegmenter} on the same labeling.
+	 * The cheap stage uses a random forest with fewer trees.
+	 */
+	public static CascadeSegmenter train(Context context, RandomAccessibleInterval<?> image,
+		LabelRegions<?> labeling, FeatureSettings cheapFeatures, FeatureSettings fullFeatures,
+		double confidenceThreshold)
+	{
+		FastRandomForest smallForest = (FastRandomForest) Trainer.initRandomForest();
+		smallForest.setNumTrees(SMALL_FOREST_NUMBER_OF_TREES);
+		Segmenter cheap = Trainer.train(context, image, labeling, cheapFeatures, smallForest);
+		Segmenter full = Trainer.train(context, image, labeling, fullFeatures);
+		return new CascadeSegmenter(cheap, full, confidenceThreshold);
+	}
+
+	public Segmenter cheapSegmenter() {
+		return cheap;
+	}
+
+	public Segmenter fullSegmenter() {
+		return full;
+	}
+
+	public double confidenceThreshold() {
+		return confidenceThreshold;
+	}
+
+	public List<String> classNames() {
+		return full.classNames();
+	}
+
+	public RandomAccessibleInterval<UnsignedByteType> segment(RandomAccessibleInterval<?> image) {
+		Interval interval = full.features().outputIntervalFromInput(image);
+		RandomAccessibleInterval<UnsignedByteType> out = Views.translate(ArrayImgs.unsignedBytes(
+			Intervals.dimensionsAsLongArray(interval)), Intervals.minAsLongArray(interval));
+		segment(out, Views.extendBorder(image));
+		return out;
+	}
+
+	public void segment(RandomAccessibleInterval<? extends IntegerType<?>> out,
+		RandomAccessible<?> image)
+	{
+		Objects.requireNonNull(out);
+		Objects.requireNonNull(image);
+		RandomAccessibleInterval<BitType> uncertain = segmentCheap(out, image);
+		List<Interval> cells = Grids.collectAllContainedIntervals(Intervals.minAsLongArray(out),
+			Intervals.maxAsLongArray(out), cellSize(out.numDimensions()));
+		Parallelization.getTaskExecutor().forEach(cells, cell -> segmentCell(out, image, uncertain,
+			cell));
+	}
+
+	/**
+	 * Writes the classes calculated by the cheap segmenter into the output
+	 * image. Returns a mask of the uncertain pixels.
+	 */
+	private RandomAccessibleInterval<BitType> segmentCheap(
+		RandomAccessibleInterval<? extends IntegerType<?>> out, RandomAccessible<?> image)
+	{
+		int numberOfClasses = classNames().size();
+		long[] min = Intervals.minAsLongArray(out);
+		Interval probabilitiesInterval = Intervals.addDimension(out, 0, numberOfClasses - 1);
+		RandomAccessibleInterval<FloatType> probabilities = Views.translate(ArrayImgs.floats(
+			Intervals.dimensionsAsLongArray(probabilitiesInterval)), Intervals.minAsLongArray(
+				probabilitiesInterval));
+		cheap.predict(probabilities, image);
+		RandomAccessibleInterval<BitType> uncertain = Views.translate(ArrayImgs.bits(Intervals
+			.dimensionsAsLongArray(out)), min);
+		RandomAccessibleInterval<Composite<FloatType>> probabilityVectors = FastViews
+			.collapse(probabilities);
+		LoopBuilder.setImages(probabilityVectors, out, uncertain).multiThreaded().forEachPixel(
+			(p, o, u) -> {
+				int best = 0;
+				float max = p.get(0).get();
+				for (int k = 1; k < numberOfClasses; k++) {
+					float value = p.get(k).get();
+					if (max < value) {
+						best = k;
+						max = value;
+					}
+				}
+				o.setInteger(best);
+				u.set(max < confidenceThreshold);
+			});
+		return uncertain;
+	}
+
+	/**
+	 * Applies the full segmenter to the bounding box of the uncertain pixels in
+	 * the cell, and writes the results for the uncertain pixels into the output
+	 * image.
+	 */
+	private void segmentCell(RandomAccessibleInterval<? extends IntegerType<?>> out,
+		RandomAccessible<?> image, RandomAccessibleInterval<BitType> uncertain, Interval cell)
+	{
+		Interval box = boundingBoxOfTrue(Views.interval(uncertain, cell));
+		if (box == null)
+			return;
+		RandomAccessibleInterval<IntType> labels = Views.translate(ArrayImgs.ints(Intervals
+			.dimensionsAsLongArray(box)), Intervals.minAsLongArray(box));
+		full.segment(labels, image);
+		LoopBuilder.setImages(Views.interval(uncertain, box), labels, Views.interval(out, box))
+			.forEachPixel((u, l, o) -> {
+				if (u.get()) o.setInteger(l.get());
+			});
+	}
+
+	/**
+	 * Returns the bounding box of the true pixels in the mask, or null if there
+	 * are none.
+	 */
+	private static Interval boundingBoxOfTrue(RandomAccessibleInterval<BitType> mask) {
+		int n = mask.numDimensions();
+		long[] min = new long[n];
+		long[] max = new long[n];
+		Arrays.fill(min, Long.MAX_VALUE);
+		Arrays.fill(max, Long.MIN_VALUE);
+		Cursor<BitType> cursor = Views.iterable(mask).localizingCursor();
+		boolean found = false;
+		while (cursor.hasNext())
+			if (cursor.next().get()) {
+				found = true;
+				for (int d = 0; d < n; d++) {
+					long position = cursor.getLongPosition(d);
+					min[d] = Math.min(min[d], position);
+					max[d] = Math.max(max[d], position);
+				}
+			}
+		return found ? new FinalInterval(min, max) : null;
+	}
+
+	private static int[] cellSize(int numDimensions) {
+		int[] cellSize = new int[numDimensions];
+		Arrays.fill(cellSize, 1 << ((numDimensions <= 2 ? 18 : 21) / numDimensions));
+		return cellSize;
+	}
+}
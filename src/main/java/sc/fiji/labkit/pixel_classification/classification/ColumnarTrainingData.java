@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.classification;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.Composite;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Growable store for training data. The feature values are stored column wise,
+ * one float array per feature. Compared to weka {@link Instances}, there is no
+ * object allocated per sample. The data is converted to the format needed by
+ * the classifier only once, when training starts, see {@link #features()} and
+ * {@link #toInstances}.
+ * <p>
+ * The number of samples per class is limited according to a
+ * {@link SamplingPolicy}. Once a class reaches the limit, each new sample
+ * replaces a randomly chosen stored sample of the same class with the
+ * appropriate probability (reservoir sampling). This way the stored samples
+ * are a uniform random subset of all added samples.
+ */
+public class ColumnarTrainingData {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int numberOfFeatures;
+
+	private final SamplingPolicy policy;
+
+	private final Random random;
+
+	private float[][] columns;
+
+	private int[] classes;
+
+	private int size = 0;
+
+	/** For each class the rows, where its samples are stored. */
+	private final List<TIntArrayList> classRows = new ArrayList<>();
+
+	/** For each class the number of samples, that have been added. */
+	private final TLongArrayList classCounts = new TLongArrayList();
+
+	public ColumnarTrainingData(int numberOfFeatures) {
+		this(numberOfFeatures, SamplingPolicy.unlimited());
+	}
+
+	public ColumnarTrainingData(int numberOfFeatures, SamplingPolicy policy) {
+		this.numberOfFeatures = numberOfFeatures;
+		this.policy = policy;
+		this.random = new Random(policy.seed());
+		this.columns = new float[numberOfFeatures][INITIAL_CAPACITY];
+		this.classes = new int[INITIAL_CAPACITY];
+	}
+
+	public int numberOfFeatures() {
+		return numberOfFeatures;
+	}
+
+	public SamplingPolicy policy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the number of stored samples.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public void add(Composite<? extends RealType<?>> featureVector, int classIndex) {
+		int row = rowForNewSample(classIndex);
+		if (row < 0)
+			return;
+		for (int f = 0; f < numberOfFeatures; f++)
+			columns[f][row] = featureVector.get(f).getRealFloat();
+	}
+
+	/**
+	 * Adds all labeled pixels of an image.
+	 *
+	 * @param featureStack Feature stack, the last axis is the feature axis.
+	 * @param labels Image with the same size as the feature stack (without
+	 *          the last axis). A value of zero marks an unlabeled pixel, value k
+	 *          marks a pixel of class k - 1.
+	 */
+	public void add(RandomAccessibleInterval<? extends RealType<?>> featureStack,
+		RandomAccessibleInterval<? extends IntegerType<?>> labels)
+	{
+		int n = labels.numDimensions();
+		if (featureStack.numDimensions() != n + 1 || featureStack.dimension(
+			n) != numberOfFeatures)
+			throw new IllegalArgumentException(
+				"The feature stack must have one axis more than the labels, with one entry per feature.");
+		RandomAccess<? extends RealType<?>> ra = featureStack.randomAccess();
+		Cursor<? extends IntegerType<?>> cursor = Views.flatIterable(labels).localizingCursor();
+		while (cursor.hasNext()) {
+			int label = cursor.next().getInteger();
+			if (label == 0)
+				continue;
+			int row = rowForNewSample(label - 1);
+			if (row < 0)
+				continue;
+			for (int d = 0; d < n; d++)
+				ra.setPosition(cursor.getLongPosition(d), d);
+			ra.setPosition(featureStack.min(n), n);
+			for (int f = 0; f < numberOfFeatures; f++) {
+				columns[f][row] = ra.get().getRealFloat();
+				ra.fwd(n);
+			}
+		}
+	}
+
+	/**
+	 * Returns the row where the features of a new sample are to be written, or
+	 * -1 if the sample is dropped.
+	 */
+	private int rowForNewSample(int classIndex) {
+		while (classRows.size() <= classIndex) {
+			classRows.add(new TIntArrayList());
+			classCounts.add(0);
+		}
+		long count = classCounts.get(classIndex) + 1;
+		classCounts.set(classIndex, count);
+		TIntArrayList rows = classRows.get(classIndex);
+		if (rows.size() < policy.maxSamplesPerClass()) {
+			ensureCapacity(size + 1);
+			classes[size] = classIndex;
+			rows.add(size);
+			return size++;
+		}
+		long j = Math.floorMod(random.nextLong(), count);
+		return j < rows.size() ? rows.get((int) j) : -1;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= classes.length)
+			return;
+		long maxSize = Integer.MAX_VALUE / Math.max(1, numberOfFeatures);
+		if (capacity > maxSize)
+			throw new IllegalStateException("Too many samples.");
+		int newCapacity = (int) Math.min(maxSize, Math.max(capacity, 2L * classes.length));
+		for (int f = 0; f < numberOfFeatures; f++)
+			columns[f] = Arrays.copyOf(columns[f], newCapacity);
+		classes = Arrays.copyOf(classes, newCapacity);
+	}
+
+	/**
+	 * Returns the sample matrix in the columnar layout used by
+	 * {@link sc.fiji.labkit.pixel_classification.random_forest.RandomForestTrainer#train}:
+	 * the value of feature f for sample i is at index {@code f * n + i}, where n
+	 * is the length of {@link #classes()}.
+	 */
+	public float[] features() {
+		int[] rows = selectedRows();
+		float[] features = new float[numberOfFeatures * rows.length];
+		for (int f = 0; f < numberOfFeatures; f++)
+			for (int i = 0; i < rows.length; i++)
+				features[f * rows.length + i] = columns[f][rows[i]];
+		return features;
+	}
+
+	/**
+	 * Returns the class indices of the samples.
+	 */
+	public int[] classes() {
+		int[] rows = selectedRows();
+		int[] result = new int[rows.length];
+		for (int i = 0; i < rows.length; i++)
+			result[i] = classes[rows[i]];
+		return result;
+	}
+
+	/**
+	 * Converts the training data to weka {@link Instances}.
+	 *
+	 * @param attributes Attributes of the features, followed by the class
+	 *          attribute.
+	 */
+	public Instances toInstances(List<Attribute> attributes) {
+		if (attributes.size() != numberOfFeatures + 1)
+			throw new IllegalArgumentException("Expected one attribute per feature and the class.");
+		int[] rows = selectedRows();
+		Instances instances = new Instances("segment", new ArrayList<>(attributes), rows.length);
+		instances.setClassIndex(numberOfFeatures);
+		for (int row : rows) {
+			double[] values = new double[numberOfFeatures + 1];
+			for (int f = 0; f < numberOfFeatures; f++)
+				values[f] = columns[f][row];
+			values[numberOfFeatures] = classes[row];
+			instances.add(new DenseInstance(1.0, values));
+		}
+		return instances;
+	}
+
+	/**
+	 * Returns the rows used for training, in ascending order. These are all
+	 * stored rows, unless the {@link SamplingPolicy.Balance#UNDERSAMPLE} policy
+	 * selects a random subset of each class. The selection is the same on each
+	 * call.
+	 */
+	private int[] selectedRows() {
+		if (policy.balance() == SamplingPolicy.Balance.NONE)
+			return IntStream.range(0, size).toArray();
+		int minimum = classRows.stream().mapToInt(TIntArrayList::size).filter(x -> x > 0).min()
+			.orElse(0);
+		Random random = new Random(policy.seed());
+		TIntArrayList selected = new TIntArrayList();
+		for (TIntArrayList rows : classRows) {
+			TIntArrayList shuffled = new TIntArrayList(rows);
+			shuffled.shuffle(random);
+			selected.addAll(shuffled.subList(0, Math.min(minimum, shuffled.size())));
+		}
+		selected.sort();
+		return selected.toArray();
+	}
+}
@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.classification;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+import java.util.Objects;
+
+/**
+ * Controls which labeled pixels are used to train a {@link Segmenter}.
+ * <p>
+ * The number of samples per class is limited to
+ * {@link #maxSamplesPerClass()}. If a class has more labeled pixels, a uniform
+ * random subset is kept, which is selected by streaming reservoir sampling
+ * while the pixels are added. This way large, flood filled labels don't
+ * dominate memory and training time. Additionally the classes can be
+ * balanced, see {@link Balance}. The random selection is deterministic for a
+ * given {@link #seed()}.
+ * <p>
+ * The policy is stored in the JSON of the {@link Segmenter}.
+ */
+public final class SamplingPolicy {
+
+	/**
+	 * How the number of samples is balanced between the classes.
+	 */
+	public enum Balance {
+			/** Each class keeps all its samples, up to the limit. */
+			NONE,
+			/**
+			 * Before training, every class is reduced to the number of samples of
+			 * the smallest class.
+			 */
+			UNDERSAMPLE
+	}
+
+	private static final SamplingPolicy UNLIMITED = new SamplingPolicy(Integer.MAX_VALUE,
+		Balance.NONE, 1);
+
+	private final int maxSamplesPerClass;
+
+	private final Balance balance;
+
+	private final long seed;
+
+	public SamplingPolicy(int maxSamplesPerClass, Balance balance, long seed) {
+		if (maxSamplesPerClass < 1)
+			throw new IllegalArgumentException("The maximal number of samples must be positive.");
+		this.maxSamplesPerClass = maxSamplesPerClass;
+		this.balance = Objects.requireNonNull(balance);
+		this.seed = seed;
+	}
+
+	/**
+	 * Returns the default policy, which uses all labeled pixels.
+	 */
+	public static SamplingPolicy unlimited() {
+		return UNLIMITED;
+	}
+
+	public int maxSamplesPerClass() {
+		return maxSamplesPerClass;
+	}
+
+	public Balance balance() {
+		return balance;
+	}
+
+	public long seed() {
+		return seed;
+	}
+
+	public boolean isUnlimited() {
+		return equals(UNLIMITED);
+	}
+
+	public JsonElement toJson() {
+		return new Gson().toJsonTree(this);
+	}
+
+	public static SamplingPolicy fromJson(JsonElement json) {
+		return new Gson().fromJson(json, SamplingPolicy.class);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(maxSamplesPerClass, balance, seed);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SamplingPolicy))
+			return false;
+		SamplingPolicy policy = (SamplingPolicy) obj;
+		return maxSamplesPerClass == policy.maxSamplesPerClass &&
+			balance == policy.balance &&
+			seed == policy.seed;
+	}
+}
@@ -42,6 +42,8 @@ import net.imglib2.img.array.ArrayImgFactory;
 import sc.fiji.labkit.pixel_classification.gpu.api.GpuCopy;
 import sc.fiji.labkit.pixel_classification.gpu.api.GpuPool;
 import sc.fiji.labkit.pixel_classification.random_forest.CpuRandomForestPrediction;
+import sc.fiji.labkit.pixel_classification.random_forest.RandomForestClassifier;
+import sc.fiji.labkit.pixel_classification.random_forest.TransparentRandomForest;
 import sc.fiji.labkit.pixel_classification.gpu.random_forest.GpuRandomForestPrediction;
 import sc.fiji.labkit.pixel_classification.pixel_feature.calculator.FeatureCalculator;
 import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
@@ -52,14 +54,12 @@ import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Cast;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import net.imglib2.view.composite.Composite;
 import org.scijava.Context;
 import weka.classifiers.Classifier;
 import weka.core.Attribute;
-import weka.core.Instances;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -80,8 +80,17 @@ public class Segmenter {
 
 	private CpuRandomForestPrediction cpuPrediction;
 
+	/**
+	 * The value at index i is true, if feature i is used by the random forest.
+	 * Only these features are calculated by {@link #segment} and
+	 * {@link #predict}.
+	 */
+	private boolean[] usedFeatures;
+
 	private boolean useGpu = false;
 
+	private SamplingPolicy samplingPolicy = SamplingPolicy.unlimited();
+
 	private Segmenter(List<String> classNames, FeatureCalculator features,
 		Classifier classifier)
 	{
@@ -93,8 +102,25 @@ public class Segmenter {
 
 	private void updatePrecacheRandomForests()
 	{
-		this.gpuPrediction = new GpuRandomForestPrediction( Cast.unchecked( classifier ), features.count() );
-		this.cpuPrediction = new CpuRandomForestPrediction( Cast.unchecked( classifier ), features.count() );
+		TransparentRandomForest forest = TransparentRandomForest.forClassifier( classifier );
+		this.gpuPrediction = new GpuRandomForestPrediction( forest, features.count() );
+		this.cpuPrediction = cpuPrediction( forest );
+		this.usedFeatures = forest.usedAttributes( features.count() );
+	}
+
+	/**
+	 * If the classifier is updated incrementally, only the parts of the
+	 * {@link CpuRandomForestPrediction} that belong to replaced trees are
+	 * rebuilt.
+	 */
+	private CpuRandomForestPrediction cpuPrediction( TransparentRandomForest forest )
+	{
+		if ( !( classifier instanceof RandomForestClassifier ) || !( ( RandomForestClassifier ) classifier ).isIncremental() )
+			return new CpuRandomForestPrediction( forest, features.count() );
+		if ( cpuPrediction != null && cpuPrediction.isIncremental() )
+			return cpuPrediction.update( forest );
+		int treesPerChunk = ( ( RandomForestClassifier ) classifier ).numberOfTreesPerUpdate();
+		return CpuRandomForestPrediction.incremental( forest, features.count(), treesPerChunk );
 	}
 
 	public Segmenter(Context context, List<String> classNames, FeatureSettings features,
@@ -112,6 +138,18 @@ public class Segmenter {
 		features.setUseGpu(useGpu);
 	}
 
+	/**
+	 * Sets the {@link SamplingPolicy}, that limits the number of training
+	 * samples per class. It's used by subsequent calls of {@link #training()}.
+	 */
+	public void setSamplingPolicy(SamplingPolicy samplingPolicy) {
+		this.samplingPolicy = Objects.requireNonNull(samplingPolicy);
+	}
+
+	public SamplingPolicy samplingPolicy() {
+		return samplingPolicy;
+	}
+
 	public FeatureCalculator features() {
 		return features;
 	}
@@ -157,7 +195,8 @@ public class Segmenter {
 	private void segmentCpu(RandomAccessible<?> image,
 		RandomAccessibleInterval<? extends IntegerType<?>> out)
 	{
-		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, out);
+		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, out,
+			this::isFeatureUsed);
 		cpuPrediction.segment(featureValues, out);
 	}
 
@@ -165,7 +204,7 @@ public class Segmenter {
 		RandomAccessibleInterval<? extends IntegerType<?>> out)
 	{
 		try (GpuApi scope = GpuPool.borrowGpu()) {
-			GpuImage featureStack = features.applyUseGpu(scope, image, out);
+			GpuImage featureStack = features.applyUseGpu(scope, image, out, this::isFeatureUsed);
 			GpuImage segmentationBuffer = gpuPrediction.segment(scope, featureStack);
 			GpuCopy.copyFromTo(segmentationBuffer, out);
 		}
@@ -198,7 +237,8 @@ public class Segmenter {
 		RandomAccessible<?> image)
 	{
 		Interval interval = RevampUtils.removeLastDimension(out);
-		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, interval);
+		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, interval,
+			this::isFeatureUsed);
 		cpuPrediction.distribution(featureValues, out);
 	}
 
@@ -207,7 +247,8 @@ public class Segmenter {
 	{
 		Interval interval = RevampUtils.removeLastDimension(out);
 		try (GpuApi scope = GpuPool.borrowGpu()) {
-			GpuImage featureStack = features.applyUseGpu(scope, image, interval);
+			GpuImage featureStack = features.applyUseGpu(scope, image, interval,
+				this::isFeatureUsed);
 			GpuImage distribution = scope.create(featureStack.getDimensions(), classNames.size(),
 				NativeTypeEnum.Float);
 			gpuPrediction.distribution(scope, featureStack, distribution);
@@ -215,6 +256,10 @@ public class Segmenter {
 		}
 	}
 
+	private boolean isFeatureUsed(int index) {
+		return usedFeatures[index];
+	}
+
 	public List<String> classNames() {
 		return classNames;
 	}
@@ -228,39 +273,49 @@ public class Segmenter {
 		json.add("features", features.settings().toJson());
 		json.add("classNames", new Gson().toJsonTree(classNames));
 		json.add("classifier", ClassifierSerialization.wekaToJson(classifier));
+		if (!samplingPolicy.isUnlimited())
+			json.add("sampling", samplingPolicy.toJson());
 		return json;
 	}
 
 	public static Segmenter fromJson(Context context, JsonElement json) {
 		JsonObject object = json.getAsJsonObject();
-		return new Segmenter(
+		Segmenter segmenter = new Segmenter(
 			context,
 			new Gson().fromJson(object.get("classNames"), new TypeToken<List<String>>()
 			{}.getType()),
 			FeatureSettings.fromJson(object.get("features")),
 			ClassifierSerialization.jsonToWeka(object.get("classifier")));
+		if (object.has("sampling"))
+			segmenter.setSamplingPolicy(SamplingPolicy.fromJson(object.get("sampling")));
+		return segmenter;
 	}
 
 	private class MyTrainingData implements Training {
 
-		final Instances instances;
-
-		final int featureCount;
+		final ColumnarTrainingData data = new ColumnarTrainingData(features.count(),
+			samplingPolicy);
 
-		MyTrainingData() {
-			this.instances = new Instances("segment", new ArrayList<>(attributes()), 1);
-			this.featureCount = features.count();
-			instances.setClassIndex(featureCount);
+		@Override
+		public void add(Composite<? extends RealType<?>> featureVector, int classIndex) {
+			data.add(featureVector, classIndex);
 		}
 
 		@Override
-		public void add(Composite<? extends RealType<?>> featureVector, int classIndex) {
-			instances.add(RevampUtils.getInstance(featureCount, classIndex, featureVector));
+		public void add(RandomAccessibleInterval<? extends RealType<?>> featureStack,
+			RandomAccessibleInterval<? extends IntegerType<?>> labels)
+		{
+			data.add(featureStack, labels);
 		}
 
 		@Override
 		public void train() {
-			RevampUtils.wrapException(() -> classifier.buildClassifier(instances));
+			if (classifier instanceof RandomForestClassifier)
+				((RandomForestClassifier) classifier).train(data.features(), data.numberOfFeatures(),
+					data.classes(), classNames.size());
+			else
+				RevampUtils.wrapException(() -> classifier.buildClassifier(data.toInstances(
+					attributes())));
 			updatePrecacheRandomForests();
 		}
 	}
@@ -32,6 +32,9 @@ package sc.fiji.labkit.pixel_classification.classification;
 import hr.irb.fastRandomForest.FastRandomForest;
 import ij.Prefs;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
@@ -39,9 +42,15 @@ import sc.fiji.labkit.pixel_classification.pixel_feature.calculator.FeatureCalcu
 import net.imglib2.roi.labeling.LabelRegion;
 import net.imglib2.roi.labeling.LabelRegions;
 import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
+import sc.fiji.labkit.pixel_classification.random_forest.RandomForestClassifier;
+import sc.fiji.labkit.pixel_classification.random_forest.RandomForestTrainer;
 import sc.fiji.labkit.pixel_classification.utils.views.FastViews;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.type.logic.BoolType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
 import net.imglib2.view.composite.Composite;
 import net.imglib2.view.composite.GenericComposite;
@@ -49,10 +58,13 @@ import org.scijava.Context;
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 /**
@@ -73,9 +85,13 @@ public class Trainer {
 	private boolean finished = false;
 
 	private Trainer(Segmenter segmenter) {
-		features = segmenter.features();
-		training = segmenter.training();
-		classNames = segmenter.classNames();
+		this(segmenter.features(), segmenter.classNames(), segmenter.training());
+	}
+
+	Trainer(FeatureCalculator features, List<String> classNames, Training training) {
+		this.features = features;
+		this.classNames = classNames;
+		this.training = training;
 	}
 
 	public static Trainer of(Segmenter segmenter) {
@@ -93,16 +109,186 @@ public class Trainer {
 		training.train();
 	}
 
+	/**
+	 * Trains the segmenter with the labeled pixels of the image.
+	 * <p>
+	 * The features are only calculated for the blocks of the image, that
+	 * contain labeled pixels. This way the training time depends on the labeled
+	 * area, rather than on the image size. The features are calculated as for
+	 * the whole image, the border of each block is taken into account.
+	 * <p>
+	 * If all blocks contain labeled pixels, the features of the whole image are
+	 * calculated in one go, and the samples are added class by class. Otherwise
+	 * the blocks are processed as by {@link #trainLabeledImages(List)}, and the
+	 * samples are added block by block. The order of the samples influences the
+	 * random forest. If the labels span several blocks, the results of the two
+	 * cases therefore differ slightly.
+	 */
 	public void trainLabeledImage(RandomAccessibleInterval<?> image, LabelRegions<?> labeling) {
-		RandomAccessible<Composite<FloatType>> featureStack = FastViews
-			.collapse(features.apply(image));
-		trainLabeledFeatures(featureStack, labeling);
+		Interval interval = features.outputIntervalFromInput(image);
+		List<BlockTask> tasks = blockTasks(image, labeling);
+		if (tasks.size() == new BlockGrid(interval).numberOfBlocks()) {
+			// NB: All blocks are labeled, calculate the features in one go.
+			trainLabeledFeatures(FastViews.collapse(features.apply(Views.extendBorder(image),
+				interval)), labeling);
+			return;
+		}
+		trainBlocks(tasks, defaultMemoryBudget());
+		if (autoFinish)
+			finish();
+	}
+
+	/**
+	 * Same as {@link #trainLabeledImages(List, long)}, with a memory budget of
+	 * a quarter of the maximal heap size.
+	 */
+	public void trainLabeledImages(
+		List<? extends Pair<? extends RandomAccessibleInterval<?>, ? extends LabelRegions<?>>> images)
+	{
+		trainLabeledImages(images, defaultMemoryBudget());
+	}
+
+	/**
+	 * Trains the segmenter with the labeled pixels of multiple images.
+	 * <p>
+	 * Each image is divided into blocks, as in {@link #trainLabeledImage}. The
+	 * features of the labeled blocks of all images are calculated in parallel.
+	 * At most {@code memoryBudget} bytes of feature stacks are kept in memory
+	 * at a time. The samples are added to the training data in a fixed order:
+	 * image by image, block by block, and within a block class by class. The
+	 * result is therefore independent of the number of threads and of the
+	 * memory budget.
+	 * <p>
+	 * NB: This block-major order differs from the class-major order of
+	 * {@link #trainLabeledFeatures}, which {@link #trainLabeledImage} uses for
+	 * images where all blocks are labeled. If the labels span several blocks,
+	 * the resulting random forests differ slightly.
+	 *
+	 * @param images List of pairs of image and labeling.
+	 * @param memoryBudget Maximal size in bytes of the feature stacks, that are
+	 *          calculated simultaneously. At least one block is calculated at a
+	 *          time.
+	 */
+	public void trainLabeledImages(
+		List<? extends Pair<? extends RandomAccessibleInterval<?>, ? extends LabelRegions<?>>> images,
+		long memoryBudget)
+	{
+		List<BlockTask> tasks = new ArrayList<>();
+		for (Pair<? extends RandomAccessibleInterval<?>, ? extends LabelRegions<?>> pair : images)
+			tasks.addAll(blockTasks(pair.getA(), pair.getB()));
+		trainBlocks(tasks, memoryBudget);
+		if (autoFinish)
+			finish();
+	}
+
+	private static long defaultMemoryBudget() {
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	/**
+	 * Returns a {@link BlockTask} for each block of the image, that contains
+	 * labeled pixels. The blocks are sorted by block index.
+	 */
+	private List<BlockTask> blockTasks(RandomAccessibleInterval<?> image,
+		LabelRegions<?> labeling)
+	{
+		BlockGrid grid = new BlockGrid(features.outputIntervalFromInput(image));
+		Set<Long> blocks = new TreeSet<>();
+		forEachLabeledPixel(labeling, (position, classIndex) -> blocks.add(grid.blockIndex(
+			position)));
+		RandomAccessible<?> extendedImage = Views.extendBorder(image);
+		List<BlockTask> tasks = new ArrayList<>(blocks.size());
+		for (long blockIndex : blocks)
+			tasks.add(new BlockTask(extendedImage, labeling, grid.block(blockIndex)));
+		return tasks;
+	}
+
+	/**
+	 * Calculates the features of the blocks in batches, that fit into the
+	 * memory budget. The blocks of a batch are calculated in parallel. The
+	 * labeled pixels are added to the training data in the order of the tasks.
+	 */
+	private void trainBlocks(List<BlockTask> tasks, long memoryBudget) {
+		long bytesPerPixel = 4L * features.count();
+		int start = 0;
+		while (start < tasks.size()) {
+			int end = start;
+			long bytes = 0;
+			do {
+				bytes += bytesPerPixel * Intervals.numElements(tasks.get(end).block);
+				end++;
+			}
+			while (end < tasks.size() && bytes + bytesPerPixel * Intervals.numElements(tasks.get(
+				end).block) <= memoryBudget);
+			List<BlockTask> batch = tasks.subList(start, end);
+			List<RandomAccessibleInterval<FloatType>> featureStacks = Parallelization
+				.getTaskExecutor().forEachApply(batch, task -> features.apply(task.extendedImage,
+					task.block));
+			for (int i = 0; i < batch.size(); i++)
+				addLabeledPixels(featureStacks.get(i), batch.get(i).labeling, batch.get(i).block);
+			start = end;
+		}
+	}
+
+	/**
+	 * Adds the labeled pixels within the block to the training data.
+	 */
+	private <L> void addLabeledPixels(RandomAccessibleInterval<FloatType> featureStack,
+		LabelRegions<L> regions, Interval block)
+	{
+		RandomAccess<Composite<FloatType>> ra = FastViews.collapse(featureStack).randomAccess();
+		Map<String, L> kayMap = createKeyMap(regions);
+		for (int classIndex = 0; classIndex < classNames.size(); classIndex++) {
+			L label = kayMap.get(classNames.get(classIndex));
+			if (label == null)
+				continue;
+			LabelRegion<L> region = regions.getLabelRegion(label);
+			Interval intersection = Intervals.intersect(region, block);
+			if (Intervals.isEmpty(intersection))
+				continue;
+			Cursor<BoolType> cursor = Views.interval(region, intersection).localizingCursor();
+			while (cursor.hasNext()) {
+				if (!cursor.next().get())
+					continue;
+				ra.setPosition(cursor);
+				training.add(ra.get(), classIndex);
+			}
+		}
+	}
+
+	private static class BlockTask {
+
+		private final RandomAccessible<?> extendedImage;
+
+		private final LabelRegions<?> labeling;
+
+		private final Interval block;
+
+		private BlockTask(RandomAccessible<?> extendedImage, LabelRegions<?> labeling,
+			Interval block)
+		{
+			this.extendedImage = extendedImage;
+			this.labeling = labeling;
+			this.block = block;
+		}
 	}
 
 	public <L> void trainLabeledFeatures(
 		RandomAccessible<? extends Composite<? extends RealType<?>>> features, LabelRegions<L> regions)
 	{
 		RandomAccess<? extends Composite<? extends RealType<?>>> ra = features.randomAccess();
+		forEachLabeledPixel(regions, (position, classIndex) -> {
+			ra.setPosition(position);
+			training.add(ra.get(), classIndex);
+		});
+		if (autoFinish)
+			finish();
+	}
+
+	/**
+	 * Visits the labeled pixels class by class, in the order of the class names.
+	 */
+	private <L> void forEachLabeledPixel(LabelRegions<L> regions, LabeledPixelAction action) {
 		Map<String, L> kayMap = createKeyMap(regions);
 		for (int classIndex = 0; classIndex < classNames.size(); classIndex++) {
 			L label = kayMap.get(classNames.get(classIndex));
@@ -112,12 +298,64 @@ public class Trainer {
 			Cursor<Void> cursor = region.inside().cursor();
 			while (cursor.hasNext()) {
 				cursor.next();
-				ra.setPosition(cursor);
-				training.add(ra.get(), classIndex);
+				action.accept(cursor, classIndex);
 			}
 		}
-		if (autoFinish)
-			finish();
+	}
+
+	private interface LabeledPixelAction {
+
+		void accept(Localizable position, int classIndex);
+	}
+
+	/**
+	 * Divides an interval into blocks. 2D images are divided into blocks of
+	 * 512 x 512 pixels. Images with more dimensions are divided into blocks of
+	 * roughly {@code 2^21} pixels, that is 128 x 128 x 128 pixels for 3D images.
+	 * The halo of the features, which is about three times the biggest sigma,
+	 * would otherwise be much bigger than a block.
+	 */
+	private static class BlockGrid {
+
+		private final Interval interval;
+
+		private final long blockSize;
+
+		private final long[] gridSize;
+
+		private BlockGrid(Interval interval) {
+			int n = interval.numDimensions();
+			this.interval = interval;
+			this.blockSize = 1L << ((n <= 2 ? 18 : 21) / n);
+			this.gridSize = new long[n];
+			for (int d = 0; d < n; d++)
+				gridSize[d] = (interval.dimension(d) + blockSize - 1) / blockSize;
+		}
+
+		private long numberOfBlocks() {
+			return Intervals.numElements(gridSize);
+		}
+
+		private long blockIndex(Localizable position) {
+			long index = 0;
+			for (int d = gridSize.length - 1; d >= 0; d--)
+				index = index * gridSize[d] + (position.getLongPosition(d) - interval.min(d)) /
+					blockSize;
+			return index;
+		}
+
+		private Interval block(long blockIndex) {
+			int n = gridSize.length;
+			long[] min = new long[n];
+			long[] max = new long[n];
+			for (int d = 0; d < n; d++) {
+				long i = blockIndex % gridSize[d];
+				blockIndex /= gridSize[d];
+				min[d] = interval.min(d) + i * blockSize;
+				max[d] = Math.min(interval.max(d), min[d] + blockSize - 1);
+			}
+			return new FinalInterval(min, max);
+		}
 	}
 
 	private <L> Map<String, L> createKeyMap(LabelRegions<L> regions) {
@@ -134,14 +372,55 @@ public class Trainer {
 
 	public static Segmenter train(Context context, RandomAccessibleInterval<?> image,
 		LabelRegions<?> labeling, FeatureSettings features, Classifier initialWekaClassifier)
+	{
+		return train(context, image, labeling, features, initialWekaClassifier, SamplingPolicy
+			.unlimited());
+	}
+
+	/**
+	 * Same as {@link #train(Context, RandomAccessibleInterval, LabelRegions, FeatureSettings, Classifier)},
+	 * but the number of training samples per class is limited by the given
+	 * {@link SamplingPolicy}.
+	 */
+	public static Segmenter train(Context context, RandomAccessibleInterval<?> image,
+		LabelRegions<?> labeling, FeatureSettings features, Classifier initialWekaClassifier,
+		SamplingPolicy samplingPolicy)
 	{
 		List<String> classNames = labeling.getExistingLabels().stream().map(Object::toString).collect(
 			Collectors.toList());
 		Segmenter segmenter = new Segmenter(context, classNames, features, initialWekaClassifier);
+		segmenter.setSamplingPolicy(samplingPolicy);
 		Trainer.of(segmenter).trainLabeledImage(image, labeling);
 		return segmenter;
 	}
 
+	/**
+	 * Trains a {@link Segmenter}, that uses at most {@code maxFeatureSettings}
+	 * of the given feature settings. The most important settings are selected
+	 * by {@link TrainingWorkbench#selectFeatures}, such that the out-of-bag
+	 * accuracy is at most {@code tolerance} below the accuracy with all
+	 * features, if possible.
+	 */
+	public static Segmenter trainWithFeatureBudget(Context context,
+		RandomAccessibleInterval<?> image, LabelRegions<?> labeling, FeatureSettings features,
+		RandomForestTrainer trainer, int maxFeatureSettings, double tolerance)
+	{
+		List<String> classNames = labeling.getExistingLabels().stream().map(Object::toString).collect(
+			Collectors.toList());
+		TrainingWorkbench workbench = new TrainingWorkbench(context, classNames, features);
+		workbench.addLabeledImage(image, labeling);
+		TrainingWorkbench.FeatureSelection selection = workbench.selectFeatures(trainer,
+			maxFeatureSettings, tolerance);
+		return workbench.segmenter(trainer, selection);
+	}
+
+	/**
+	 * Returns a weka {@link FastRandomForest} with 200 trees and 2 random
+	 * features. If the trained forest needs to be reproducible, independent of
+	 * the number of threads, or if the training should be split into batches of
+	 * trees, use a {@link RandomForestClassifier} instead. See
+	 * {@link RandomForestTrainer#trainTreeRange}.
+	 */
 	public static AbstractClassifier initRandomForest() {
 		FastRandomForest rf = new FastRandomForest();
 		int numOfTrees = 200;
@@ -157,4 +436,14 @@ public class Trainer {
 		rf.setNumThreads(Prefs.getThreads());
 		return rf;
 	}
+
+	/**
+	 * Returns an in-house random forest with the same parameters as
+	 * {@link #initRandomForest()}. It uses the histogram based split search,
+	 * whose runtime grows linearly with the number of labeled pixels.
+	 */
+	public static AbstractClassifier initHistogramRandomForest() {
+		return new RandomForestClassifier(new RandomForestTrainer(200, 2, 1,
+			RandomForestTrainer.SplitMode.HISTOGRAM));
+	}
 }
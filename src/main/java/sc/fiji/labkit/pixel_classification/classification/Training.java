@@ -29,8 +29,13 @@
 
 package sc.fiji.labkit.pixel_classification.classification;
 
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 import net.imglib2.view.composite.Composite;
+import net.imglib2.view.composite.GenericComposite;
 
 /**
  * @author Matthias Arzt
@@ -39,5 +44,26 @@ public interface Training {
 
 	void add(Composite<? extends RealType<?>> featureVector, int classIndex);
 
+	/**
+	 * Adds all labeled pixels of an image.
+	 *
+	 * @param featureStack Feature stack, the last axis is the feature axis.
+	 * @param labels A value of zero marks an unlabeled pixel, value k marks a
+	 *          pixel of class k - 1.
+	 */
+	default void add(RandomAccessibleInterval<? extends RealType<?>> featureStack,
+		RandomAccessibleInterval<? extends IntegerType<?>> labels)
+	{
+		Cursor<? extends IntegerType<?>> labelCursor = Views.flatIterable(labels).cursor();
+		Cursor<? extends GenericComposite<? extends RealType<?>>> featureCursor = Views
+			.flatIterable(Views.collapse(featureStack)).cursor();
+		while (labelCursor.hasNext()) {
+			int label = labelCursor.next().getInteger();
+			Composite<? extends RealType<?>> featureVector = featureCursor.next();
+			if (label != 0)
+				add(featureVector, label - 1);
+		}
+	}
+
 	void train();
 }
@@ -0,0 +1,504 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.classification;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Pair;
+import net.imglib2.view.composite.Composite;
+import org.scijava.Context;
+import sc.fiji.labkit.pixel_classification.pixel_feature.calculator.FeatureCalculator;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.FeatureOp;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSetting;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
+import sc.fiji.labkit.pixel_classification.random_forest.CpuRandomForestPrediction;
+import sc.fiji.labkit.pixel_classification.random_forest.RandomForestClassifier;
+import sc.fiji.labkit.pixel_classification.random_forest.RandomForestTrainer;
+import sc.fiji.labkit.pixel_classification.random_forest.TransparentRandomForest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@link TrainingWorkbench} calculates the feature vectors of the labeled
+ * pixels once, and allows to train and evaluate many random forest
+ * configurations on this cached sample matrix.
+ * <p>
+ * Calculating the features is usually much more expensive than training a
+ * random forest. When tuning the number of trees, the number of random
+ * features or the tree depth, it's therefore a lot faster to reuse the sample
+ * matrix, than to call {@link Trainer#train} for each configuration.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * {@code
+ * TrainingWorkbench workbench = new TrainingWorkbench(context, classNames, settings);
+ * workbench.addLabeledImage(image, labeling);
+ * List<TrainingWorkbench.Evaluation> evaluations = workbench.crossValidate(trainers, 5);
+ * TrainingWorkbench.Evaluation best = Collections.max(evaluations,
+ * 	Comparator.comparingDouble(TrainingWorkbench.Evaluation::accuracy));
+ * Segmenter segmenter = workbench.segmenter(best.trainer());
+ * }
+ * </pre>
+ */
+public class TrainingWorkbench {
+
+	private static final long FOLD_SEED = 42;
+
+	private final Context context;
+
+	private final FeatureSettings settings;
+
+	private final FeatureCalculator features;
+
+	private final List<String> classNames;
+
+	private final ColumnarTrainingData data;
+
+	private float[] sampleFeatures;
+
+	private int[] sampleClasses;
+
+	public TrainingWorkbench(Context context, List<String> classNames,
+		FeatureSettings settings)
+	{
+		this(context, classNames, settings, SamplingPolicy.unlimited());
+	}
+
+	public TrainingWorkbench(Context context, List<String> classNames,
+		FeatureSettings settings, SamplingPolicy samplingPolicy)
+	{
+		this.context = context;
+		this.settings = settings;
+		this.features = new FeatureCalculator(context, settings);
+		this.classNames = Collections.unmodifiableList(new ArrayList<>(classNames));
+		this.data = new ColumnarTrainingData(features.count(), samplingPolicy);
+	}
+
+	/**
+	 * Calculates the features of the labeled pixels, and adds them to the
+	 * sample matrix. See {@link Trainer#trainLabeledImage}.
+	 */
+	public void addLabeledImage(RandomAccessibleInterval<?> image, LabelRegions<?> labeling) {
+		trainer().trainLabeledImage(image, labeling);
+	}
+
+	/**
+	 * Same as {@link #addLabeledImage} for multiple images. The features are
+	 * calculated in parallel. See {@link Trainer#trainLabeledImages(List)}.
+	 */
+	public void addLabeledImages(
+		List<? extends Pair<? extends RandomAccessibleInterval<?>, ? extends LabelRegions<?>>> images)
+	{
+		trainer().trainLabeledImages(images);
+	}
+
+	private Trainer trainer() {
+		return new Trainer(features, classNames, new Training() {
+
+			@Override
+			public void add(Composite<? extends RealType<?>> featureVector, int classIndex) {
+				data.add(featureVector, classIndex);
+				sampleFeatures = null;
+				sampleClasses = null;
+			}
+
+			@Override
+			public void train() {
+				// NB: The samples are only collected.
+			}
+		});
+	}
+
+	public List<String> classNames() {
+		return classNames;
+	}
+
+	public int numberOfFeatures() {
+		return features.count();
+	}
+
+	public int numberOfSamples() {
+		return classes().length;
+	}
+
+	/**
+	 * Returns the cached sample matrix, in the columnar layout used by
+	 * {@link RandomForestTrainer#train}.
+	 */
+	public float[] features() {
+		if (sampleFeatures == null)
+			sampleFeatures = data.features();
+		return sampleFeatures;
+	}
+
+	/**
+	 * Returns the class indices of the samples.
+	 */
+	public int[] classes() {
+		if (sampleClasses == null)
+			sampleClasses = data.classes();
+		return sampleClasses;
+	}
+
+	/**
+	 * Trains a random forest on all samples.
+	 */
+	public TransparentRandomForest train(RandomForestTrainer trainer) {
+		return trainer.train(features(), numberOfFeatures(), classes(), classNames.size());
+	}
+
+	/**
+	 * Returns a {@link Segmenter} with a {@link RandomForestClassifier}, that is
+	 * trained on all samples.
+	 */
+	public Segmenter segmenter(RandomForestTrainer trainer) {
+		RandomForestClassifier classifier = new RandomForestClassifier(trainer);
+		classifier.train(features(), numberOfFeatures(), classes(), classNames.size());
+		return new Segmenter(context, classNames, settings, classifier);
+	}
+
+	/**
+	 * Selects a small subset of the {@link FeatureSettings#features()}, that
+	 * is sufficient to reach almost the accuracy of all features.
+	 * <p>
+	 * A forest is trained with all features. The feature settings are ranked
+	 * by the number of splits, that use any of their output channels. Then the
+	 * top 1, 2, ... settings are tried in order, until the out-of-bag accuracy
+	 * (see {@link RandomForestTrainer#outOfBagAccuracy}) is at most
+	 * {@code tolerance} below the accuracy of the full forest, or until
+	 * {@code maxFeatureSettings} is reached. The features are not recalculated,
+	 * the forests are trained on the columns of the cached sample matrix.
+	 * <p>
+	 * The cost of calculating the features is linear in the number of feature
+	 * settings, a {@link Segmenter} with fewer settings is correspondingly
+	 * faster.
+	 */
+	public FeatureSelection selectFeatures(RandomForestTrainer trainer, int maxFeatureSettings,
+		double tolerance)
+	{
+		int numberOfSettings = settings.features().size();
+		if (maxFeatureSettings < 1)
+			throw new IllegalArgumentException("At least one feature setting must be kept.");
+		int[] settingOfFeature = settingOfFeature();
+		TransparentRandomForest forest = train(trainer);
+		double fullAccuracy = trainer.outOfBagAccuracy(forest, features(), numberOfFeatures(),
+			classes(), classNames.size());
+		int[] importances = new int[numberOfSettings];
+		int[] splitCounts = forest.splitCounts(numberOfFeatures());
+		for (int f = 0; f < splitCounts.length; f++)
+			importances[settingOfFeature[f]] += splitCounts[f];
+		List<Integer> ranking = new ArrayList<>();
+		for (int i = 0; i < numberOfSettings; i++)
+			ranking.add(i);
+		ranking.sort((a, b) -> Integer.compare(importances[b], importances[a]));
+		boolean[] selected = new boolean[numberOfSettings];
+		double accuracy = Double.NaN;
+		for (int k = 0; k < Math.min(maxFeatureSettings, numberOfSettings); k++) {
+			selected[ranking.get(k)] = true;
+			if (k + 1 == numberOfSettings) {
+				accuracy = fullAccuracy;
+				break;
+			}
+			Samples samples = selectColumns(settingOfFeature, selected);
+			int numberOfColumns = samples.features.length / samples.classes.length;
+			TransparentRandomForest reduced = trainer.train(samples.features, numberOfColumns,
+				samples.classes, classNames.size());
+			accuracy = trainer.outOfBagAccuracy(reduced, samples.features, numberOfColumns,
+				samples.classes, classNames.size());
+			if (accuracy >= fullAccuracy - tolerance)
+				break;
+		}
+		return new FeatureSelection(settings, selected, importances, accuracy, fullAccuracy);
+	}
+
+	/**
+	 * Returns a {@link Segmenter}, that only uses the selected feature
+	 * settings. The {@link RandomForestClassifier} is trained on the
+	 * corresponding columns of the cached sample matrix.
+	 */
+	public Segmenter segmenter(RandomForestTrainer trainer, FeatureSelection selection) {
+		Samples samples = selectColumns(settingOfFeature(), selection.selected);
+		RandomForestClassifier classifier = new RandomForestClassifier(trainer);
+		classifier.train(samples.features, samples.features.length / samples.classes.length,
+			samples.classes, classNames.size());
+		return new Segmenter(context, classNames, selection.settings(), classifier);
+	}
+
+	/**
+	 * Returns for each feature, i.e. each column of the sample matrix, the
+	 * index of the {@link FeatureSettings#features() feature setting}, that
+	 * calculates it. See {@link FeatureCalculator#apply} for the order of the
+	 * features.
+	 */
+	private int[] settingOfFeature() {
+		List<FeatureOp> ops = features.features();
+		int channelCount = settings.globals().channelSetting().channels().size();
+		int[] settingOfFeature = new int[numberOfFeatures()];
+		int index = 0;
+		for (int op = 0; op < ops.size(); op++)
+			for (int i = 0; i < ops.get(op).count(); i++)
+				for (int channel = 0; channel < channelCount; channel++)
+					settingOfFeature[index++] = op;
+		return settingOfFeature;
+	}
+
+	private Samples selectColumns(int[] settingOfFeature, boolean[] selectedSettings) {
+		float[] allFeatures = features();
+		int n = numberOfSamples();
+		int numberOfColumns = 0;
+		for (int setting : settingOfFeature)
+			if (selectedSettings[setting])
+				numberOfColumns++;
+		float[] features = new float[numberOfColumns * n];
+		int column = 0;
+		for (int f = 0; f < settingOfFeature.length; f++)
+			if (selectedSettings[settingOfFeature[f]])
+				System.arraycopy(allFeatures, f * n, features, n * column++, n);
+		return new Samples(features, classes());
+	}
+
+	/**
+	 * Same as {@link #crossValidate(List, int)} for a single configuration.
+	 */
+	public Evaluation crossValidate(RandomForestTrainer trainer, int numberOfFolds) {
+		return crossValidate(Collections.singletonList(trainer), numberOfFolds).get(0);
+	}
+
+	/**
+	 * Evaluates the given random forest configurations by k-fold cross
+	 * validation. The samples are split into {@code numberOfFolds} folds, such
+	 * that each class is evenly distributed over the folds. For each fold, all
+	 * configurations are trained in parallel on the remaining folds, and their
+	 * accuracy is measured on the fold. The split is deterministic, all
+	 * configurations are evaluated on the same folds.
+	 */
+	public List<Evaluation> crossValidate(List<RandomForestTrainer> trainers,
+		int numberOfFolds)
+	{
+		int[] classes = classes();
+		if (numberOfFolds < 2 || numberOfFolds > classes.length)
+			throw new IllegalArgumentException("Number of folds must be between 2 and the number" +
+				" of samples, but is " + numberOfFolds + ".");
+		int[] folds = folds(classes, numberOfFolds);
+		double[][] accuracies = new double[trainers.size()][numberOfFolds];
+		for (int fold = 0; fold < numberOfFolds; fold++) {
+			Samples training = subset(folds, fold, false);
+			Samples test = subset(folds, fold, true);
+			List<Double> foldAccuracies = Parallelization.getTaskExecutor().forEachApply(trainers,
+				trainer -> test.accuracy(trainer.train(training.features, numberOfFeatures(),
+					training.classes, classNames.size()), numberOfFeatures()));
+			for (int i = 0; i < trainers.size(); i++)
+				accuracies[i][fold] = foldAccuracies.get(i);
+		}
+		List<Evaluation> evaluations = new ArrayList<>(trainers.size());
+		for (int i = 0; i < trainers.size(); i++)
+			evaluations.add(new Evaluation(trainers.get(i), accuracies[i]));
+		return evaluations;
+	}
+
+	/**
+	 * Assigns each sample to a fold. The samples are shuffled, grouped by class,
+	 * and then distributed round robin over the folds. A single round robin
+	 * counter is used for all classes. This way each class is evenly distributed
+	 * over the folds, and the folds differ in size by at most one sample. No
+	 * fold is empty, because there are at least as many samples as folds.
+	 */
+	private int[] folds(int[] classes, int numberOfFolds) {
+		Random random = new Random(FOLD_SEED);
+		int[] folds = new int[classes.length];
+		int[] order = new int[classes.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+		int nextFold = 0;
+		for (int c = 0; c < classNames.size(); c++)
+			for (int i : order)
+				if (classes[i] == c) {
+					folds[i] = nextFold;
+					nextFold = (nextFold + 1) % numberOfFolds;
+				}
+		return folds;
+	}
+
+	/**
+	 * Returns the samples that belong to the given fold, or if {@code inFold}
+	 * is false, all other samples.
+	 */
+	private Samples subset(int[] folds, int fold, boolean inFold) {
+		int[] rows = new int[folds.length];
+		int n = 0;
+		for (int i = 0; i < folds.length; i++)
+			if ((folds[i] == fold) == inFold)
+				rows[n++] = i;
+		float[] allFeatures = features();
+		int[] allClasses = classes();
+		int numberOfFeatures = numberOfFeatures();
+		float[] features = new float[numberOfFeatures * n];
+		int[] classes = new int[n];
+		for (int i = 0; i < n; i++)
+			classes[i] = allClasses[rows[i]];
+		for (int f = 0; f < numberOfFeatures; f++) {
+			int offset = f * folds.length;
+			for (int i = 0; i < n; i++)
+				features[f * n + i] = allFeatures[offset + rows[i]];
+		}
+		return new Samples(features, classes);
+	}
+
+	private static class Samples {
+
+		private final float[] features;
+
+		private final int[] classes;
+
+		private Samples(float[] features, int[] classes) {
+			this.features = features;
+			this.classes = classes;
+		}
+
+		private double accuracy(TransparentRandomForest forest, int numberOfFeatures) {
+			int n = classes.length;
+			int[] predicted = new int[n];
+			new CpuRandomForestPrediction(forest, numberOfFeatures).classesForInstances(features,
+				predicted);
+			int correct = 0;
+			for (int i = 0; i < n; i++)
+				if (predicted[i] == classes[i])
+					correct++;
+			return (double) correct / n;
+		}
+	}
+
+	/**
+	 * Result of {@link #selectFeatures}.
+	 */
+	public static class FeatureSelection {
+
+		private final FeatureSettings settings;
+
+		private final boolean[] selected;
+
+		private final int[] importances;
+
+		private final double accuracy;
+
+		private final double fullAccuracy;
+
+		private FeatureSelection(FeatureSettings settings, boolean[] selected, int[] importances,
+			double accuracy, double fullAccuracy)
+		{
+			List<FeatureSetting> list = new ArrayList<>();
+			for (int i = 0; i < selected.length; i++)
+				if (selected[i])
+					list.add(settings.features().get(i));
+			this.settings = new FeatureSettings(settings.globals(), list);
+			this.selected = selected;
+			this.importances = importances;
+			this.accuracy = accuracy;
+			this.fullAccuracy = fullAccuracy;
+		}
+
+		/**
+		 * Returns the feature settings, that only contain the selected entries,
+		 * in their original order.
+		 */
+		public FeatureSettings settings() {
+			return settings;
+		}
+
+		/**
+		 * Returns for each entry of {@link FeatureSettings#features()} the number
+		 * of splits in the full forest, that use its features.
+		 */
+		public int[] importances() {
+			return importances.clone();
+		}
+
+		/**
+		 * Out-of-bag accuracy of a forest trained with the selected features.
+		 */
+		public double accuracy() {
+			return accuracy;
+		}
+
+		/**
+		 * Out-of-bag accuracy of a forest trained with all features.
+		 */
+		public double fullAccuracy() {
+			return fullAccuracy;
+		}
+	}
+
+	/**
+	 * Result of the cross validation of one random forest configuration.
+	 */
+	public static class Evaluation {
+
+		private final RandomForestTrainer trainer;
+
+		private final double[] foldAccuracies;
+
+		private Evaluation(RandomForestTrainer trainer, double[] foldAccuracies) {
+			this.trainer = trainer;
+			this.foldAccuracies = foldAccuracies;
+		}
+
+		public RandomForestTrainer trainer() {
+			return trainer;
+		}
+
+		/**
+		 * Returns the fraction of correctly classified test samples for each
+		 * fold.
+		 */
+		public double[] foldAccuracies() {
+			return foldAccuracies.clone();
+		}
+
+		/**
+		 * Returns the mean accuracy over all folds.
+		 */
+		public double accuracy() {
+			return Arrays.stream(foldAccuracies).average().orElse(Double.NaN);
+		}
+	}
+}
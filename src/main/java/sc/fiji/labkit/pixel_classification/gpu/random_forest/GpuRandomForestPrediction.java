@@ -73,8 +73,10 @@ public class GpuRandomForestPrediction {
 	private final float[] leafProbabilities;
 
 	public GpuRandomForestPrediction(FastRandomForest classifier, int numberOfFeatures) {
-		TransparentRandomForest forest =
-			TransparentRandomForest.forFastRandomForest(classifier);
+		this(TransparentRandomForest.forFastRandomForest(classifier), numberOfFeatures);
+	}
+
+	public GpuRandomForestPrediction(TransparentRandomForest forest, int numberOfFeatures) {
 		List<GpuRandomTreePrediction> trees = forest.trees().stream().map(
 			GpuRandomTreePrediction::new)
 			.collect(Collectors.toList());
@@ -75,6 +75,8 @@ public class FeatureCalculator {
 
 	private boolean useGpu = false;
 
+	private boolean floatPrecision = false;
+
 	public FeatureCalculator(Context context, FeatureSettings settings) {
 		this.settings = settings;
 		List<FeatureOp> featureOps = settings.features().stream()
@@ -120,6 +122,20 @@ public class FeatureCalculator {
 		this.useGpu = useGpu;
 	}
 
+	/**
+	 * If true, the CPU implementation stores the gaussian blurred images and
+	 * their derivatives as float rather than double. This halves the memory
+	 * and bandwidth needed for the intermediate images, the features deviate
+	 * slightly. The default is false. See {@link FeatureInput}.
+	 */
+	public void setFloatPrecision(boolean floatPrecision) {
+		this.floatPrecision = floatPrecision;
+	}
+
+	public boolean isFloatPrecision() {
+		return floatPrecision;
+	}
+
 	/**
 	 * TODO what channel order? XYZC
 	 */
@@ -142,11 +158,25 @@ public class FeatureCalculator {
 
 	public RandomAccessibleInterval<FloatType> apply(RandomAccessible<?> extendedImage,
 		Interval interval)
+	{
+		return apply(extendedImage, interval, index -> true);
+	}
+
+	/**
+	 * Same as {@link #apply(RandomAccessible, Interval)}, but only the feature
+	 * channels for which {@code usedChannels} returns true are guaranteed to be
+	 * calculated. A {@link FeatureOp} is skipped for an input channel, if none of
+	 * its output channels is used. The channel indices are the same as for
+	 * {@link #apply(RandomAccessible, Interval)}, the values of the skipped
+	 * channels are undefined.
+	 */
+	public RandomAccessibleInterval<FloatType> apply(RandomAccessible<?> extendedImage,
+		Interval interval, IntPredicate usedChannels)
 	{
 		FinalInterval fullInterval = Intervals.addDimension(interval, 0, count() - 1);
 		if (useGpu) {
 			try (GpuApi scope = GpuPool.borrowGpu()) {
-				GpuImage featureStack = applyUseGpu(scope, extendedImage, interval);
+				GpuImage featureStack = applyUseGpu(scope, extendedImage, interval, usedChannels);
 				return Views.translate(scope.pullRAIMultiChannel(featureStack),
 					Intervals.minAsLongArray(fullInterval));
 			}
@@ -154,35 +184,59 @@ public class FeatureCalculator {
 		else {
 			Img<FloatType> image = ArrayImgs.floats(Intervals.dimensionsAsLongArray(fullInterval));
 			IntervalView<FloatType> rai = Views.translate(image, Intervals.minAsLongArray(fullInterval));
-			applyUseCpu(extendedImage, rai);
+			applyUseCpu(extendedImage, rai, usedChannels);
 			return rai;
 		}
 	}
 
 	private void applyUseCpu(RandomAccessible<?> input, RandomAccessibleInterval<FloatType> output) {
+		applyUseCpu(input, output, index -> true);
+	}
+
+	private void applyUseCpu(RandomAccessible<?> input, RandomAccessibleInterval<FloatType> output,
+		IntPredicate usedChannels)
+	{
 		List<RandomAccessible<FloatType>> channels = preprocessor.getChannels(input);
+		int channelCount = channels.size();
 		List<List<RandomAccessibleInterval<FloatType>>> outputs = split(RevampUtils.slices(output),
-			channels.size());
+			channelCount);
 		double[] pixelSize = settings.globals().pixelSizeAsDoubleArray();
-		for (int i = 0; i < channels.size(); i++) {
-			FeatureInput in = new FeatureInput(channels.get(i), outputs.get(i).get(0), pixelSize);
-			joiner.apply(in, outputs.get(i));
+		for (int i = 0; i < channelCount; i++) {
+			int channel = i;
+			FeatureInput in = new FeatureInput(channels.get(i), outputs.get(i).get(0), pixelSize,
+				floatPrecision);
+			joiner.apply(in, outputs.get(i), index -> usedChannels.test(index * channelCount +
+				channel));
 		}
 	}
 
 	public GpuImage applyUseGpu(GpuApi gpu, RandomAccessible<?> input, Interval interval) {
+		return applyUseGpu(gpu, input, interval, index -> true);
+	}
+
+	/**
+	 * Same as {@link #applyUseGpu(GpuApi, RandomAccessible, Interval)}, but
+	 * features are skipped as described in
+	 * {@link #apply(RandomAccessible, Interval, IntPredicate)}.
+	 */
+	public GpuImage applyUseGpu(GpuApi gpu, RandomAccessible<?> input, Interval interval,
+		IntPredicate usedChannels)
+	{
 		if (interval.numDimensions() != settings().globals().numDimensions())
 			throw new IllegalArgumentException("Wrong dimension of the output interval.");
 		double[] pixelSize = settings.globals().pixelSizeAsDoubleArray();
 		List<RandomAccessible<FloatType>> channels = preprocessor.getChannels(input);
 		GpuImage featureStack = gpu.create(Intervals.dimensionsAsLongArray(interval), count(),
 			NativeTypeEnum.Float);
-		List<List<GpuView>> outputs = split(GpuViews.channels(featureStack), channels.size());
-		for (int i = 0; i < channels.size(); i++) {
+		int channelCount = channels.size();
+		List<List<GpuView>> outputs = split(GpuViews.channels(featureStack), channelCount);
+		for (int i = 0; i < channelCount; i++) {
+			int channel = i;
+			IntPredicate usedOutputs = index -> usedChannels.test(index * channelCount + channel);
 			try (GpuApi scope = gpu.subScope()) {
 				GpuFeatureInput in = new GpuFeatureInput(scope, channels.get(i), interval, pixelSize);
-				joiner.prefetch(in);
-				joiner.apply(in, outputs.get(i));
+				joiner.prefetch(in, usedOutputs);
+				joiner.apply(in, outputs.get(i), usedOutputs);
 			}
 		}
 		return featureStack;
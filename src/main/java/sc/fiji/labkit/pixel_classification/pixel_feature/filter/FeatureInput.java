@@ -35,6 +35,7 @@ import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.algorithm.convolution.Convolution;
 import net.imglib2.algorithm.convolution.kernel.Kernel1D;
 import net.imglib2.algorithm.convolution.kernel.SeparableKernelConvolution;
@@ -44,6 +45,7 @@ import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
+import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealTypeConverters;
 
 import java.util.ArrayList;
@@ -57,7 +59,8 @@ public class FeatureInput {
 
 	private final RandomAccessible<FloatType> original;
 	private final Interval target;
-	private final Map<Double, RandomAccessibleInterval<DoubleType>> gaussCache =
+	private final boolean floatPrecision;
+	private final Map<Double, RandomAccessibleInterval<? extends RealType<?>>> gaussCache =
 		new ConcurrentHashMap<>();
 	private final Map<Object, RandomAccessibleInterval<DoubleType>> derivatives =
 		new ConcurrentHashMap<>();
@@ -68,10 +71,25 @@ public class FeatureInput {
 	 */
 	public FeatureInput(RandomAccessible<FloatType> original, Interval targetInterval,
 		double[] pixelSize)
+	{
+		this(original, targetInterval, pixelSize, false);
+	}
+
+	/**
+	 * @param floatPrecision If true, the gaussian blurred images and their
+	 *          derivatives are calculated and stored as {@link FloatType}
+	 *          rather than {@link DoubleType}. This halves the memory used by
+	 *          the intermediate images, at the cost of a small deviation of the
+	 *          results. The intermediate images are still returned as
+	 *          {@link DoubleType} views.
+	 */
+	public FeatureInput(RandomAccessible<FloatType> original, Interval targetInterval,
+		double[] pixelSize, boolean floatPrecision)
 	{
 		this.original = original;
 		this.pixelSize = pixelSize;
 		this.target = new FinalInterval(targetInterval);
+		this.floatPrecision = floatPrecision;
 	}
 
 	/**
@@ -90,20 +108,26 @@ public class FeatureInput {
 		return target;
 	}
 
+	public boolean isFloatPrecision() {
+		return floatPrecision;
+	}
+
 	public RandomAccessibleInterval<DoubleType> gauss(double sigma) {
-		return Views.interval(extendedGauss(sigma), target);
+		return Views.interval(asDoubles(extendedGauss(sigma)), target);
 	}
 
-	private RandomAccessibleInterval<DoubleType> extendedGauss(double sigma) {
+	private RandomAccessibleInterval<? extends RealType<?>> extendedGauss(double sigma) {
 		return gaussCache.computeIfAbsent(sigma, this::calculateGauss);
 	}
 
-	private RandomAccessibleInterval<DoubleType> calculateGauss(double sigma) {
-		final RandomAccessibleInterval<DoubleType> result = create(Intervals.expand(target, 2));
+	private RandomAccessibleInterval<? extends RealType<?>> calculateGauss(double sigma) {
+		final RandomAccessibleInterval<? extends RealType<?>> result = create(Intervals.expand(
+			target, 2));
 		if (sigma == 0)
 			RealTypeConverters.copyFromTo(original, result);
 		else
-			Gauss3.gauss(scaledSigmas(sigma), (RandomAccessible) original, result);
+			Gauss3.gauss(scaledSigmas(sigma), (RandomAccessible) original,
+				(RandomAccessibleInterval) result);
 		return result;
 	}
 
@@ -130,9 +154,9 @@ public class FeatureInput {
 		}
 		if (convolutions.isEmpty())
 			return gauss(sigma);
-		final RandomAccessibleInterval<DoubleType> result = create(target);
+		final RandomAccessibleInterval<? extends RealType<?>> result = create(target);
 		Convolution.concat(convolutions).process(extendedGauss(sigma), result);
-		return result;
+		return asDoubles(result);
 	}
 
 	static List<Kernel1D> SIMPLE_KERNELS = Arrays.asList(
@@ -153,8 +177,21 @@ public class FeatureInput {
 		return result;
 	}
 
-	private RandomAccessibleInterval<DoubleType> create(Interval target) {
-		return Views.translate(ArrayImgs.doubles(Intervals.dimensionsAsLongArray(target)), Intervals
-			.minAsLongArray(target));
+	private RandomAccessibleInterval<? extends RealType<?>> create(Interval target) {
+		long[] dimensions = Intervals.dimensionsAsLongArray(target);
+		long[] min = Intervals.minAsLongArray(target);
+		if (floatPrecision)
+			return Views.translate(ArrayImgs.floats(dimensions), min);
+		return Views.translate(ArrayImgs.doubles(dimensions), min);
+	}
+
+	@SuppressWarnings("unchecked")
+	private RandomAccessibleInterval<DoubleType> asDoubles(
+		RandomAccessibleInterval<? extends RealType<?>> image)
+	{
+		if (!floatPrecision)
+			return (RandomAccessibleInterval<DoubleType>) image;
+		return Converters.convert((RandomAccessibleInterval<RealType<?>>) image, (in, out) -> out
+			.setReal(in.getRealDouble()), new DoubleType());
 	}
 }
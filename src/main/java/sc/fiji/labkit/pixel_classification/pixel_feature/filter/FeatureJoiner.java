@@ -39,6 +39,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.function.BiConsumer;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
 
 /**
  * Created by arzt on 23.08.17.
@@ -78,29 +80,63 @@ public class FeatureJoiner {
 	}
 
 	public void apply(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
-		genericApply(output, (featureOp, o) -> featureOp.apply(input, o));
+		apply(input, output, index -> true);
+	}
+
+	/**
+	 * Same as {@link #apply(FeatureInput, List)}, but a {@link FeatureOp} is
+	 * skipped, if {@code usedOutputs} returns false for all of its output
+	 * indices.
+	 */
+	public void apply(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output,
+		IntPredicate usedOutputs)
+	{
+		genericApply(output, usedOutputs, (featureOp, o) -> featureOp.apply(input, o));
 	}
 
 	public void prefetch(GpuFeatureInput input) {
-		for (FeatureOp feature : features)
-			feature.prefetch(input);
+		prefetch(input, index -> true);
+	}
+
+	public void prefetch(GpuFeatureInput input, IntPredicate usedOutputs) {
+		int startIndex = 0;
+		for (FeatureOp feature : features) {
+			if (isUsed(startIndex, feature.count(), usedOutputs))
+				feature.prefetch(input);
+			startIndex += feature.count();
+		}
 	}
 
 	public void apply(GpuFeatureInput input, List<GpuView> output) {
-		genericApply(output, (featureOp, o) -> featureOp.apply(input, o));
+		apply(input, output, index -> true);
+	}
+
+	public void apply(GpuFeatureInput input, List<GpuView> output, IntPredicate usedOutputs) {
+		genericApply(output, usedOutputs, (featureOp, o) -> featureOp.apply(input, o));
 	}
 
 	public <T> void genericApply(List<T> output, BiConsumer<FeatureOp, List<T>> applyFeature) {
+		genericApply(output, index -> true, applyFeature);
+	}
+
+	public <T> void genericApply(List<T> output, IntPredicate usedOutputs,
+		BiConsumer<FeatureOp, List<T>> applyFeature)
+	{
 		if (output.size() != count)
 			throw new IllegalArgumentException();
 		int startIndex = 0;
 		for (FeatureOp feature : features) {
 			int count = feature.count();
-			applyFeature.accept(feature, output.subList(startIndex, startIndex + count));
+			if (isUsed(startIndex, count, usedOutputs))
+				applyFeature.accept(feature, output.subList(startIndex, startIndex + count));
 			startIndex += count;
 		}
 	}
 
+	private static boolean isUsed(int startIndex, int count, IntPredicate usedOutputs) {
+		return IntStream.range(startIndex, startIndex + count).anyMatch(usedOutputs);
+	}
+
 	public List<String> attributeLabels() {
 		List<String> labels = new ArrayList<>();
 		features.stream().map(FeatureOp::attributeLabels).forEach(labels::addAll);
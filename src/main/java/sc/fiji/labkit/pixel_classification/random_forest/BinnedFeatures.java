@@ -0,0 +1,213 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import net.imglib2.parallel.Parallelization;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A columnar sample matrix, where each feature value is replaced by the index
+ * of a bin. Used by {@link RandomForestTrainer} for the
+ * {@link RandomForestTrainer.SplitMode#HISTOGRAM histogram based} split search.
+ * <p>
+ * The bins of a feature are separated by thresholds t_0 < t_1 < ... < t_(n-2).
+ * A value v is in bin b, if b thresholds are smaller or equal to v. NaN is put
+ * into the last bin. This way {@code bin <= b} is equivalent to
+ * {@code v < t_b}, which is the condition used by the random forest nodes.
+ * <p>
+ * The thresholds are quantiles of the feature values, calculated from a sample
+ * of at most {@link #MAX_SAMPLE_SIZE} values. If a feature has at most
+ * {@link #MAX_BINS} distinct values, each value gets its own bin, and the
+ * histogram based split search gives the same thresholds as the exact one. The
+ * distinct values are collected from all values of the feature, not only from
+ * the sample.
+ */
+class BinnedFeatures {
+
+	static final int MAX_BINS = 256;
+
+	/**
+	 * Maximal number of values used to calculate the quantiles of a feature.
+	 */
+	private static final int MAX_SAMPLE_SIZE = 1 << 16;
+
+	private final int numberOfInstances;
+
+	private final byte[] bins;
+
+	private final float[][] thresholds;
+
+	private BinnedFeatures(int numberOfInstances, byte[] bins, float[][] thresholds) {
+		this.numberOfInstances = numberOfInstances;
+		this.bins = bins;
+		this.thresholds = thresholds;
+	}
+
+	/**
+	 * Bins the given columnar sample matrix, see
+	 * {@link RandomForestTrainer#train}. The features are processed in parallel.
+	 */
+	static BinnedFeatures create(float[] features, int numberOfFeatures, int numberOfInstances) {
+		byte[] bins = new byte[features.length];
+		float[][] thresholds = new float[numberOfFeatures][];
+		Parallelization.getTaskExecutor().forEach(IntStream.range(0, numberOfFeatures).boxed()
+			.collect(Collectors.toList()), feature -> {
+				int offset = feature * numberOfInstances;
+				float[] t = quantileThresholds(features, offset, numberOfInstances);
+				for (int i = 0; i < numberOfInstances; i++)
+					bins[offset + i] = (byte) bin(t, features[offset + i]);
+				thresholds[feature] = t;
+			});
+		return new BinnedFeatures(numberOfInstances, bins, thresholds);
+	}
+
+	/**
+	 * Returns at most {@code MAX_BINS - 1} ascending thresholds, that split the
+	 * values into bins of roughly equal size.
+	 */
+	private static float[] quantileThresholds(float[] features, int offset, int length) {
+		float[] sorted = sortedSample(features, offset, length);
+		int n = sorted.length;
+		while (n > 0 && Float.isNaN(sorted[n - 1]))
+			n--;
+		float[] thresholds = new float[MAX_BINS - 1];
+		int count = 0;
+		float[] distinct = numberOfDistinctValues(sorted, n) <= MAX_BINS ? distinctValues(
+			features, offset, length) : null;
+		if (distinct != null) {
+			for (int i = 1; i < distinct.length; i++)
+				thresholds[count++] = RandomForestTrainer.threshold(distinct[i - 1], distinct[i]);
+		}
+		else {
+			for (int q = 1; q < MAX_BINS; q++) {
+				int i = (int) ((long) q * n / MAX_BINS);
+				if (i == 0 || !(sorted[i - 1] < sorted[i]))
+					continue;
+				float threshold = RandomForestTrainer.threshold(sorted[i - 1], sorted[i]);
+				if (count == 0 || thresholds[count - 1] < threshold)
+					thresholds[count++] = threshold;
+			}
+		}
+		return Arrays.copyOf(thresholds, count);
+	}
+
+	private static float[] sortedSample(float[] features, int offset, int length) {
+		int sampleSize = Math.min(length, MAX_SAMPLE_SIZE);
+		float[] sample = new float[sampleSize];
+		for (int i = 0; i < sampleSize; i++)
+			sample[i] = features[offset + (int) ((long) i * length / sampleSize)];
+		Arrays.sort(sample);
+		return sample;
+	}
+
+	/**
+	 * Returns the distinct values of the feature in ascending order, or null if
+	 * there are more than {@link #MAX_BINS} of them. NaN is ignored.
+	 */
+	private static float[] distinctValues(float[] features, int offset, int length) {
+		float[] values = new float[MAX_BINS];
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			float value = features[offset + i];
+			if (Float.isNaN(value))
+				continue;
+			int index = lowerBound(values, count, value);
+			if (index < count && values[index] == value)
+				continue;
+			if (count == MAX_BINS)
+				return null;
+			System.arraycopy(values, index, values, index + 1, count - index);
+			values[index] = value;
+			count++;
+		}
+		return Arrays.copyOf(values, count);
+	}
+
+	/**
+	 * Returns the index of the first of the ascending values, that is not smaller
+	 * than the given value.
+	 */
+	private static int lowerBound(float[] values, int count, float value) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (values[middle] < value)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private static int numberOfDistinctValues(float[] sorted, int n) {
+		int count = n > 0 ? 1 : 0;
+		for (int i = 1; i < n; i++)
+			if (sorted[i - 1] < sorted[i])
+				count++;
+		return count;
+	}
+
+	/**
+	 * Returns the number of thresholds, that are smaller or equal to the value.
+	 */
+	private static int bin(float[] thresholds, float value) {
+		if (Float.isNaN(value))
+			return thresholds.length;
+		int low = 0;
+		int high = thresholds.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (thresholds[middle] <= value)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	int numberOfBins(int feature) {
+		return thresholds[feature].length + 1;
+	}
+
+	int bin(int feature, int instance) {
+		return bins[feature * numberOfInstances + instance] & 0xff;
+	}
+
+	/**
+	 * Returns the threshold, that separates bin b from bin b + 1.
+	 */
+	float threshold(int feature, int b) {
+		return thresholds[feature][b];
+	}
+}
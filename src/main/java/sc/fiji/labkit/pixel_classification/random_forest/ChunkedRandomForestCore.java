@@ -0,0 +1,362 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import sc.fiji.labkit.pixel_classification.utils.ArrayUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies a random forest, that is too big to be stored in the arrays of a
+ * single {@link CpuRandomForestCore}. The trees are split into chunks, and
+ * each chunk is stored in a separate {@link CpuRandomForestCore}. The leaf
+ * probabilities of all chunks are summed up, and normalized at the end.
+ * <p>
+ * {@link #classesForInstances} stops early for instances whose class is
+ * already decided. The check is done after each chunk.
+ */
+public class ChunkedRandomForestCore implements RandomForestCore {
+
+	private final int numClasses;
+
+	private final long maxChunkSize;
+
+	private final int maxTreesPerChunk;
+
+	private final List<List<TransparentRandomTree>> chunkTrees;
+
+	private final CpuRandomForestCore[] chunks;
+
+	/**
+	 * The value at index c is an upper bound of how much the trees in chunk c
+	 * can add to the probability of any class.
+	 */
+	private final double[] chunkMaxSums;
+
+	/**
+	 * The value at index c is the number of features used by the trees in chunk
+	 * c, i.e. the highest attribute index plus one.
+	 */
+	private final int[] chunkNumberOfFeatures;
+
+	/**
+	 * The value at index c is the minimal difference between the highest and
+	 * second highest class probability, that the chunks c, c+1, ... can't
+	 * change. See {@link #classesForInstances}.
+	 */
+	private final float[] terminationMargins;
+
+	public ChunkedRandomForestCore(FastRandomForest forest) {
+		this(TransparentRandomForest.forFastRandomForest(forest));
+	}
+
+	public ChunkedRandomForestCore(TransparentRandomForest forest) {
+		this(forest, CpuRandomForestCore.MAX_ARRAY_SIZE);
+	}
+
+	/**
+	 * @param maxChunkSize Maximal size of the arrays of each chunk, see
+	 *          {@link CpuRandomForestCore#storageSize}.
+	 */
+	ChunkedRandomForestCore(TransparentRandomForest forest, long maxChunkSize) {
+		this(forest, maxChunkSize, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxChunkSize Maximal size of the arrays of each chunk, see
+	 *          {@link CpuRandomForestCore#storageSize}.
+	 * @param maxTreesPerChunk Maximal number of trees per chunk.
+	 */
+	ChunkedRandomForestCore(TransparentRandomForest forest, long maxChunkSize,
+		int maxTreesPerChunk)
+	{
+		this.numClasses = forest.numberOfClasses();
+		this.maxChunkSize = maxChunkSize;
+		this.maxTreesPerChunk = maxTreesPerChunk;
+		this.chunkTrees = new ArrayList<>();
+		List<TransparentRandomTree> chunk = new ArrayList<>();
+		long chunkSize = 0;
+		for (TransparentRandomTree tree : forest.trees()) {
+			long size = CpuRandomForestCore.storageSize(tree, numClasses);
+			if (size > maxChunkSize)
+				throw new IllegalArgumentException("tree is too big to represent in " +
+					ChunkedRandomForestCore.class.getSimpleName());
+			if (chunkSize + size > maxChunkSize || chunk.size() >= maxTreesPerChunk) {
+				chunkTrees.add(chunk);
+				chunk = new ArrayList<>();
+				chunkSize = 0;
+			}
+			chunk.add(tree);
+			chunkSize += size;
+		}
+		if (!chunk.isEmpty())
+			chunkTrees.add(chunk);
+		this.chunks = chunkTrees.stream().map(trees -> new CpuRandomForestCore(
+			new TransparentRandomForest(trees))).toArray(CpuRandomForestCore[]::new);
+		this.chunkMaxSums = chunkTrees.stream().mapToDouble(ChunkedRandomForestCore::maxSum)
+			.toArray();
+		this.chunkNumberOfFeatures = chunkTrees.stream().mapToInt(
+			ChunkedRandomForestCore::numberOfFeatures).toArray();
+		this.terminationMargins = calculateTerminationMargins();
+	}
+
+	private ChunkedRandomForestCore(ChunkedRandomForestCore other,
+		List<List<TransparentRandomTree>> chunkTrees, CpuRandomForestCore[] chunks,
+		double[] chunkMaxSums, int[] chunkNumberOfFeatures)
+	{
+		this.numClasses = other.numClasses;
+		this.maxChunkSize = other.maxChunkSize;
+		this.maxTreesPerChunk = other.maxTreesPerChunk;
+		this.chunkTrees = chunkTrees;
+		this.chunks = chunks;
+		this.chunkMaxSums = chunkMaxSums;
+		this.chunkNumberOfFeatures = chunkNumberOfFeatures;
+		this.terminationMargins = calculateTerminationMargins();
+	}
+
+	/**
+	 * Returns a {@link ChunkedRandomForestCore} for the given forest, which is
+	 * expected to be a modified version of the forest represented by this
+	 * object. Chunks, whose trees are unchanged, are reused. Only the chunks, that
+	 * contain replaced trees, are rebuilt. A tree counts as unchanged if the
+	 * same {@link TransparentRandomTree} object is at the same position in the
+	 * forest.
+	 */
+	public ChunkedRandomForestCore update(TransparentRandomForest forest) {
+		List<TransparentRandomTree> trees = forest.trees();
+		int numberOfTrees = chunkTrees.stream().mapToInt(List::size).sum();
+		if (forest.numberOfClasses() != numClasses || trees.size() != numberOfTrees)
+			return new ChunkedRandomForestCore(forest, maxChunkSize, maxTreesPerChunk);
+		List<List<TransparentRandomTree>> newChunkTrees = new ArrayList<>(chunkTrees.size());
+		CpuRandomForestCore[] newChunks = new CpuRandomForestCore[chunks.length];
+		double[] newChunkMaxSums = new double[chunks.length];
+		int[] newChunkNumberOfFeatures = new int[chunks.length];
+		int start = 0;
+		for (int i = 0; i < chunks.length; i++) {
+			List<TransparentRandomTree> oldChunk = chunkTrees.get(i);
+			List<TransparentRandomTree> newChunk = trees.subList(start, start + oldChunk.size());
+			start += oldChunk.size();
+			if (sameTrees(oldChunk, newChunk)) {
+				newChunkTrees.add(oldChunk);
+				newChunks[i] = chunks[i];
+				newChunkMaxSums[i] = chunkMaxSums[i];
+				newChunkNumberOfFeatures[i] = chunkNumberOfFeatures[i];
+				continue;
+			}
+			long size = newChunk.stream().mapToLong(tree -> CpuRandomForestCore.storageSize(tree,
+				numClasses)).sum();
+			if (size > maxChunkSize)
+				return new ChunkedRandomForestCore(forest, maxChunkSize, maxTreesPerChunk);
+			newChunk = new ArrayList<>(newChunk);
+			newChunkTrees.add(newChunk);
+			newChunks[i] = new CpuRandomForestCore(new TransparentRandomForest(newChunk));
+			newChunkMaxSums[i] = maxSum(newChunk);
+			newChunkNumberOfFeatures[i] = numberOfFeatures(newChunk);
+		}
+		return new ChunkedRandomForestCore(this, newChunkTrees, newChunks, newChunkMaxSums,
+			newChunkNumberOfFeatures);
+	}
+
+	private static boolean sameTrees(List<TransparentRandomTree> a,
+		List<TransparentRandomTree> b)
+	{
+		for (int i = 0; i < a.size(); i++)
+			if (a.get(i) != b.get(i))
+				return false;
+		return true;
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public void distributionForInstance(float[] instance, float[] distribution) {
+		Arrays.fill(distribution, 0);
+		for (CpuRandomForestCore chunk : chunks)
+			chunk.addDistributionsForInstances(instance, 0, 1, 1, distribution);
+		ArrayUtils.normalize(distribution);
+	}
+
+	@Override
+	public void distributionForInstances(float[] features, int offset, int stride,
+		int numInstances, float[] distributions)
+	{
+		Arrays.fill(distributions, 0, numInstances * numClasses, 0);
+		for (CpuRandomForestCore chunk : chunks)
+			chunk.addDistributionsForInstances(features, offset, stride, numInstances,
+				distributions);
+		for (int i = 0; i < numInstances; i++)
+			CpuRandomForestCore.normalize(distributions, i * numClasses, numClasses);
+	}
+
+	/**
+	 * Returns the same classes as the default implementation, but the
+	 * evaluation stops early for instances whose class is already decided.
+	 * <p>
+	 * The chunks are evaluated in the same order as by
+	 * {@link #distributionForInstances}. After each chunk, an instance is marked
+	 * as decided if the difference between the highest and second highest class
+	 * probability exceeds what the remaining chunks can add. The features of the
+	 * undecided instances are copied into a compact buffer, and the remaining
+	 * chunks are only evaluated for them.
+	 */
+	@Override
+	public void classesForInstances(float[] features, int offset, int stride, int numInstances,
+		int[] classes)
+	{
+		float[] distributions = new float[numInstances * numClasses];
+		int[] active = new int[numInstances];
+		for (int i = 0; i < numInstances; i++)
+			active[i] = i;
+		int numActive = numInstances;
+		float[] compactFeatures = null;
+		int numberOfFeatures = Arrays.stream(chunkNumberOfFeatures).max().orElse(0);
+		for (int c = 0; c < chunks.length; c++) {
+			if (c > 0) {
+				int remaining = removeDecided(distributions, active, numActive, terminationMargins[c],
+					classes);
+				if (remaining == 0) return;
+				if (remaining < numActive) {
+					if (compactFeatures == null)
+						compactFeatures = new float[numberOfFeatures * numInstances];
+					for (int f = 0; f < numberOfFeatures; f++)
+						for (int a = 0; a < remaining; a++)
+							compactFeatures[f * numInstances + a] = features[offset + f * stride +
+								active[a]];
+					numActive = remaining;
+				}
+			}
+			if (compactFeatures == null)
+				chunks[c].addDistributionsForInstances(features, offset, stride, numActive,
+					distributions);
+			else
+				chunks[c].addDistributionsForInstances(compactFeatures, 0, numInstances, numActive,
+					distributions);
+		}
+		for (int a = 0; a < numActive; a++) {
+			CpuRandomForestCore.normalize(distributions, a * numClasses, numClasses);
+			classes[active[a]] = ArrayUtils.findMax(distributions, a * numClasses, numClasses);
+		}
+	}
+
+	/**
+	 * Calculates {@link #terminationMargins}. The probabilities of a class can
+	 * only grow by the remaining chunks' maximal sums. Additionally, a margin for
+	 * floating point rounding errors is added, as in {@link CpuRandomForestCore}.
+	 */
+	private float[] calculateTerminationMargins() {
+		int numberOfTrees = chunkTrees.stream().mapToInt(List::size).sum();
+		double maxSum = Arrays.stream(chunkMaxSums).sum();
+		float[] margins = new float[chunks.length];
+		double remaining = 0;
+		int remainingTrees = 0;
+		for (int c = chunks.length - 1; c >= 0; c--) {
+			remaining += chunkMaxSums[c];
+			remainingTrees += chunkTrees.get(c).size();
+			double roundingErrors = (numberOfTrees + remainingTrees + 2) * maxSum * 0x1p-23;
+			margins[c] = Math.nextUp((float) (remaining + roundingErrors));
+		}
+		return margins;
+	}
+
+	/**
+	 * Writes the class of all decided instances into {@code classes}. The
+	 * distributions of the undecided instances are moved to the front, and
+	 * {@code active} maps their new positions to the instance indices.
+	 *
+	 * @return the number of remaining undecided instances.
+	 */
+	private int removeDecided(float[] distributions, int[] active, int numActive, float margin,
+		int[] classes)
+	{
+		int remaining = 0;
+		for (int a = 0; a < numActive; a++) {
+			int base = a * numClasses;
+			int bestClass = 0;
+			float best = Float.NEGATIVE_INFINITY;
+			float secondBest = Float.NEGATIVE_INFINITY;
+			for (int k = 0; k < numClasses; k++) {
+				float value = distributions[base + k];
+				if (value > best) {
+					secondBest = best;
+					best = value;
+					bestClass = k;
+				}
+				else if (value > secondBest) secondBest = value;
+			}
+			if (best - secondBest > margin) {
+				classes[active[a]] = bestClass;
+				continue;
+			}
+			if (remaining != a) {
+				System.arraycopy(distributions, base, distributions, remaining * numClasses,
+					numClasses);
+				active[remaining] = active[a];
+			}
+			remaining++;
+		}
+		return remaining;
+	}
+
+	/**
+	 * Returns an upper bound of how much the trees can add to the probability
+	 * of any class.
+	 */
+	private static double maxSum(List<TransparentRandomTree> trees) {
+		return trees.stream().mapToDouble(ChunkedRandomForestCore::maxLeafProbability).sum();
+	}
+
+	private static double maxLeafProbability(TransparentRandomTree node) {
+		if (node.isLeaf()) {
+			double max = 0;
+			for (double p : node.classProbabilities())
+				max = Math.max(max, Math.nextUp((float) p));
+			return max;
+		}
+		return Math.max(maxLeafProbability(node.smallerChild()), maxLeafProbability(node
+			.biggerChild()));
+	}
+
+	private static int numberOfFeatures(List<TransparentRandomTree> trees) {
+		return trees.stream().mapToInt(tree -> maxAttributeIndex(tree) + 1).max().orElse(0);
+	}
+
+	private static int maxAttributeIndex(TransparentRandomTree node) {
+		if (node.isLeaf())
+			return -1;
+		return Math.max(node.attributeIndex(), Math.max(maxAttributeIndex(node.smallerChild()),
+			maxAttributeIndex(node.biggerChild())));
+	}
+}
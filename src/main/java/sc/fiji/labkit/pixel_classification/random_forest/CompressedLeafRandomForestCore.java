@@ -0,0 +1,244 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+
+/**
+ * Applies a random forest to feature vectors. The leaf probabilities are stored
+ * with reduced precision, either as 16 bit half precision floats or as 8 bit
+ * fixed point numbers with one scaling factor per tree. They are accumulated
+ * into float.
+ * <p>
+ * With many classes and many leafs, the leaf probabilities take most of the
+ * memory of a forest. Storing them with 2 or 1 bytes instead of 4 bytes per
+ * value, makes it more likely that they stay in the CPU cache during the
+ * prediction. The results differ from {@link CpuRandomForestCore} by the
+ * rounding errors of the leaf probabilities: at most 2^-11 relative error for
+ * {@link LeafEncoding#FLOAT16}, and at most 1/510 of the tree's maximal leaf
+ * probability for {@link LeafEncoding#INT8}.
+ */
+public class CompressedLeafRandomForestCore implements RandomForestCore {
+
+	public enum LeafEncoding {
+			/** IEEE 754 half precision floats. */
+			FLOAT16,
+			/** 8 bit fixed point numbers, scaled by the maximal leaf probability of the tree. */
+			INT8
+	}
+
+	private final LeafEncoding encoding;
+
+	private final int numClasses;
+
+	private final float[] prior;
+
+	/** Index of the root node of each tree. */
+	private final int[] treeRoots;
+
+	private final int[] nodeAttributes;
+
+	private final float[] nodeThresholds;
+
+	/**
+	 * The smaller child of node i is stored at {@code nodeChildren[2 * i]}, the
+	 * bigger child at {@code nodeChildren[2 * i + 1]}. Leafs are stored as
+	 * negative numbers: {@code leafIndex + Integer.MIN_VALUE}.
+	 */
+	private final int[] nodeChildren;
+
+	/** Leaf probabilities for {@link LeafEncoding#FLOAT16}, null otherwise. */
+	private final short[] halfLeafProbabilities;
+
+	/** Leaf probabilities for {@link LeafEncoding#INT8}, null otherwise. */
+	private final byte[] byteLeafProbabilities;
+
+	/** Scaling factor of each tree, for {@link LeafEncoding#INT8}. */
+	private final float[] treeScales;
+
+	public CompressedLeafRandomForestCore(FastRandomForest classifier, LeafEncoding encoding) {
+		this(TransparentRandomForest.forFastRandomForest(classifier), encoding);
+	}
+
+	public CompressedLeafRandomForestCore(TransparentRandomForest forest, LeafEncoding encoding) {
+		this.encoding = encoding;
+		this.numClasses = forest.numberOfClasses();
+		this.prior = new float[numClasses];
+		List<TransparentRandomTree> trees = new ArrayList<>();
+		for (TransparentRandomTree tree : forest.trees()) {
+			if (tree.isLeaf())
+				for (int k = 0; k < numClasses; k++)
+					prior[k] += (float) tree.classProbabilities()[k];
+			else
+				trees.add(tree);
+		}
+		int numNodes = trees.stream().mapToInt(t -> t.numberOfNodes() - t.numberOfLeafs()).sum();
+		int numLeafs = trees.stream().mapToInt(TransparentRandomTree::numberOfLeafs).sum();
+		this.treeRoots = new int[trees.size()];
+		this.nodeAttributes = new int[numNodes];
+		this.nodeThresholds = new float[numNodes];
+		this.nodeChildren = new int[2 * numNodes];
+		this.halfLeafProbabilities = encoding == LeafEncoding.FLOAT16 ? new short[numLeafs *
+			numClasses] : null;
+		this.byteLeafProbabilities = encoding == LeafEncoding.INT8 ? new byte[numLeafs * numClasses]
+			: null;
+		this.treeScales = new float[trees.size()];
+		int[] counters = new int[2];
+		for (int t = 0; t < trees.size(); t++) {
+			treeScales[t] = maxLeafProbability(trees.get(t)) / 255;
+			treeRoots[t] = write(trees.get(t), treeScales[t], counters);
+		}
+	}
+
+	private static float maxLeafProbability(TransparentRandomTree node) {
+		if (!node.isLeaf())
+			return Math.max(maxLeafProbability(node.smallerChild()), maxLeafProbability(node
+				.biggerChild()));
+		float max = 0;
+		for (double probability : node.classProbabilities())
+			max = Math.max(max, (float) probability);
+		return max;
+	}
+
+	/**
+	 * Writes the node and its subtree into the node and leaf arrays.
+	 *
+	 * @param scale scaling factor of the tree, used for {@link LeafEncoding#INT8}.
+	 * @param counters counters[0] is the next free node index, counters[1] the
+	 *          next free leaf index.
+	 * @return the index of the node, or {@code leafIndex + Integer.MIN_VALUE} if
+	 *         it's a leaf.
+	 */
+	private int write(TransparentRandomTree node, float scale, int[] counters) {
+		if (node.isLeaf()) {
+			int leaf = counters[1]++;
+			for (int k = 0; k < numClasses; k++) {
+				float probability = (float) node.classProbabilities()[k];
+				if (encoding == LeafEncoding.FLOAT16)
+					halfLeafProbabilities[leaf * numClasses + k] = toHalf(probability);
+				else
+					byteLeafProbabilities[leaf * numClasses + k] = (byte) (scale == 0 ? 0 : Math.round(
+						probability / scale));
+			}
+			return leaf + Integer.MIN_VALUE;
+		}
+		int index = counters[0]++;
+		nodeAttributes[index] = node.attributeIndex();
+		nodeThresholds[index] = (float) node.threshold();
+		nodeChildren[2 * index] = write(node.smallerChild(), scale, counters);
+		nodeChildren[2 * index + 1] = write(node.biggerChild(), scale, counters);
+		return index;
+	}
+
+	/**
+	 * Converts a non-negative float to the bits of the nearest IEEE 754 half
+	 * precision float. (Ties are rounded to even. Values that are too big for
+	 * half precision are not supported.)
+	 */
+	static short toHalf(float value) {
+		int bits = Float.floatToIntBits(value);
+		int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+		int mantissa = bits & 0x7fffff;
+		if (exponent <= 0) {
+			// subnormal half precision float
+			if (exponent < -10)
+				return 0;
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			int roundBit = 1 << (shift - 1);
+			int half = mantissa >> shift;
+			if ((mantissa & roundBit) != 0 && (mantissa & (3 * roundBit - 1)) != 0)
+				half++;
+			return (short) half;
+		}
+		int half = (exponent << 10) | (mantissa >> 13);
+		if ((mantissa & 0x1000) != 0 && (mantissa & 0x2fff) != 0)
+			half++;
+		return (short) half;
+	}
+
+	/**
+	 * Converts the bits of a non-negative IEEE 754 half precision float to
+	 * float.
+	 */
+	static float fromHalf(short half) {
+		int exponent = (half >>> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+		if (exponent == 0)
+			return mantissa * 0x1p-24f;
+		return Float.intBitsToFloat(((exponent + 127 - 15) << 23) | (mantissa << 13));
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public void distributionForInstance(float[] instance, float[] distribution) {
+		distributionForInstances(instance, 0, 1, 1, distribution);
+	}
+
+	@Override
+	public void distributionForInstances(float[] features, int offset, int stride,
+		int numInstances, float[] distributions)
+	{
+		final int numClasses = this.numClasses;
+		for (int i = 0; i < numInstances; i++)
+			System.arraycopy(prior, 0, distributions, i * numClasses, numClasses);
+		for (int t = 0; t < treeRoots.length; t++) {
+			final int root = treeRoots[t];
+			final float scale = treeScales[t];
+			for (int i = 0; i < numInstances; i++) {
+				final int instanceOffset = offset + i;
+				int node = root;
+				while (node >= 0) {
+					final float value = features[instanceOffset + nodeAttributes[node] * stride];
+					node = value < nodeThresholds[node] ? nodeChildren[2 * node] : nodeChildren[2 * node +
+						1];
+				}
+				final int leafBase = (node - Integer.MIN_VALUE) * numClasses;
+				final int distributionBase = i * numClasses;
+				if (encoding == LeafEncoding.FLOAT16)
+					for (int k = 0; k < numClasses; k++)
+						distributions[distributionBase + k] += fromHalf(halfLeafProbabilities[leafBase + k]);
+				else
+					for (int k = 0; k < numClasses; k++)
+						distributions[distributionBase + k] += (byteLeafProbabilities[leafBase + k] & 0xff) *
+							scale;
+			}
+		}
+		for (int i = 0; i < numInstances; i++)
+			CpuRandomForestCore.normalize(distributions, i * numClasses, numClasses);
+	}
+}
@@ -30,29 +30,159 @@
 package sc.fiji.labkit.pixel_classification.random_forest;
 
 import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
-import sc.fiji.labkit.pixel_classification.utils.ArrayUtils;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.parallel.TaskExecutor;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.Views;
 import sc.fiji.labkit.pixel_classification.utils.views.FastViews;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.composite.Composite;
-import net.imglib2.loops.LoopBuilder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 public class CpuRandomForestPrediction {
 
-	private final CpuRandomForestCore core;
+	/**
+	 * Number of pixels that are evaluated together by
+	 * {@link RandomForestCore#distributionForInstances}.
+	 */
+	private static final int BLOCK_SIZE = 128;
+
+	private final RandomForestCore core;
 
 	private final int numberOfFeatures;
 
+	/** True if this object was created by {@link #incremental}. */
+	private final boolean incremental;
+
 	public CpuRandomForestPrediction(FastRandomForest forest, int numberOfFeatures) {
+		this(TransparentRandomForest.forFastRandomForest(forest), numberOfFeatures);
+	}
+
+	public CpuRandomForestPrediction(TransparentRandomForest forest, int numberOfFeatures) {
+		this(newCore(forest), numberOfFeatures);
+	}
+
+	private CpuRandomForestPrediction(RandomForestCore core, int numberOfFeatures) {
+		this(core, numberOfFeatures, false);
+	}
+
+	private CpuRandomForestPrediction(RandomForestCore core, int numberOfFeatures,
+		boolean incremental)
+	{
 		this.numberOfFeatures = numberOfFeatures;
-		this.core = new CpuRandomForestCore(forest);
+		this.core = core;
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Returns a {@link CpuRandomForestPrediction} that evaluates the random forest
+	 * with the QuickScorer algorithm, see {@link QuickScorerRandomForestCore}. The
+	 * results are the same, but this is usually faster for forests with deep
+	 * trees.
+	 */
+	public static CpuRandomForestPrediction quickScorer(FastRandomForest forest,
+		int numberOfFeatures)
+	{
+		return new CpuRandomForestPrediction(new QuickScorerRandomForestCore(forest),
+			numberOfFeatures);
+	}
+
+	/**
+	 * Returns a {@link CpuRandomForestPrediction} that stores the leaf
+	 * probabilities with reduced precision, see
+	 * {@link CompressedLeafRandomForestCore}. This reduces the memory footprint of
+	 * the forest, but the probabilities differ slightly from the results of the
+	 * other implementations.
+	 */
+	public static CpuRandomForestPrediction compressedLeafs(FastRandomForest forest,
+		int numberOfFeatures, CompressedLeafRandomForestCore.LeafEncoding encoding)
+	{
+		return new CpuRandomForestPrediction(new CompressedLeafRandomForestCore(forest, encoding),
+			numberOfFeatures);
+	}
+
+	/**
+	 * Returns a {@link CpuRandomForestPrediction}, that stores the trees in
+	 * chunks of at most {@code treesPerChunk} trees, see
+	 * {@link ChunkedRandomForestCore}. This allows {@link #update} to only
+	 * rebuild the chunks that contain replaced trees.
+	 */
+	public static CpuRandomForestPrediction incremental(TransparentRandomForest forest,
+		int numberOfFeatures, int treesPerChunk)
+	{
+		return new CpuRandomForestPrediction(new ChunkedRandomForestCore(forest,
+			CpuRandomForestCore.MAX_ARRAY_SIZE, treesPerChunk), numberOfFeatures, true);
+	}
+
+	/**
+	 * Returns true, if this object was created by {@link #incremental}, or
+	 * updated from such an object.
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Returns a {@link CpuRandomForestPrediction} for a modified version of the
+	 * forest. If this object was created by {@link #incremental}, the unchanged
+	 * chunks of trees are reused. Otherwise the forest is prepared from scratch.
+	 */
+	public CpuRandomForestPrediction update(TransparentRandomForest forest) {
+		if (incremental)
+			return new CpuRandomForestPrediction(((ChunkedRandomForestCore) core).update(forest),
+				numberOfFeatures, true);
+		return new CpuRandomForestPrediction(forest, numberOfFeatures);
+	}
+
+	/**
+	 * Writes the random forest to a file, that can be opened with {@link #open}.
+	 * See {@link MappedRandomForestCore} for the file format.
+	 */
+	public static void save(FastRandomForest forest, int numberOfFeatures, Path file)
+		throws IOException
+	{
+		new CpuRandomForestCore(forest).write(file, numberOfFeatures);
+	}
+
+	/**
+	 * Opens a random forest file written by {@link #save}. The file is memory
+	 * mapped, such that all processes that open the same file share one copy of
+	 * the forest in physical memory.
+	 */
+	public static CpuRandomForestPrediction open(Path file) throws IOException {
+		MappedRandomForestCore core = MappedRandomForestCore.open(file);
+		return new CpuRandomForestPrediction(core, core.numberOfFeatures());
 	}
 
 	/**
 	 * Applies the random forest to each pixel in the feature stack. Write the index
 	 * of the class with the highest probability into the output image.
+	 * <p>
+	 * If the feature stack is an {@link ArrayImg} (as created by
+	 * {@link sc.fiji.labkit.pixel_classification.pixel_feature.calculator.FeatureCalculator#apply}),
+	 * the features are read directly from the backing array. Similarly the class
+	 * indices are written directly into the backing array, if the output image is
+	 * an {@link ArrayImg}.
+	 * <p>
+	 * The classes are calculated by {@link RandomForestCore#classesForInstances},
+	 * which allows the random forest evaluation to stop early for pixels whose
+	 * class is already decided.
 	 *
 	 * @param featureStack Input image. Axis order should be XYZC of XYC. Number of
 	 *          channels must equal {@link #numberOfFeatures()}.
@@ -62,15 +192,24 @@ public class CpuRandomForestPrediction {
 	public void segment(RandomAccessibleInterval<FloatType> featureStack,
 		RandomAccessibleInterval<? extends IntegerType<?>> out)
 	{
-		LoopBuilder.setImages(FastViews.collapse(featureStack), out).forEachChunk(chunk -> {
-			float[] features = new float[numberOfFeatures];
-			float[] probabilities = new float[numberOfClasses()];
-			chunk.forEachPixel((featureVector, classIndex) -> {
-				copyFromTo(featureVector, features);
-				core.distributionForInstance(features, probabilities);
-				classIndex.setInteger(ArrayUtils.findMax(probabilities));
-			});
-			return null;
+		RandomAccessibleInterval<Composite<FloatType>> featureVectors = FastViews.collapse(
+			featureStack);
+		checkDimensions(featureVectors, out);
+		checkNumberOfChannels(featureStack, numberOfFeatures, "feature stack");
+		float[] planarFeatures = primitiveArray(featureStack, float[].class);
+		Object labels = integerArray(out);
+		forEachRange(Intervals.numElements(out), (start, end) -> {
+			FeatureBlocks input = planarFeatures != null ? new PlanarFeatureBlocks(planarFeatures)
+				: new CompositeFeatureBlocks(featureVectors, start);
+			LabelWriter output = labels != null ? arrayLabelWriter(labels) : cursorLabelWriter(out,
+				start);
+			int[] classes = new int[BLOCK_SIZE];
+			for (long blockStart = start; blockStart < end; blockStart += BLOCK_SIZE) {
+				int blockSize = (int) Math.min(BLOCK_SIZE, end - blockStart);
+				input.classesForBlock(blockStart, blockSize, classes);
+				for (int i = 0; i < blockSize; i++)
+					output.write(blockStart + i, classes[i]);
+			}
 		});
 	}
 
@@ -86,27 +225,309 @@ public class CpuRandomForestPrediction {
 	public void distribution(RandomAccessibleInterval<FloatType> featureStack,
 		RandomAccessibleInterval<? extends RealType<?>> out)
 	{
-		LoopBuilder.setImages(FastViews.collapse(featureStack), FastViews.collapse(out)).forEachChunk(
-			chunk -> {
-				float[] features = new float[numberOfFeatures];
-				float[] probabilities = new float[numberOfClasses()];
-				chunk.forEachPixel((featureVector, probabilityVector) -> {
-					copyFromTo(featureVector, features);
-					core.distributionForInstance(features, probabilities);
-					copyFromTo(probabilities, probabilityVector);
-				});
-				return null;
-			});
+		RandomAccessibleInterval<Composite<FloatType>> featureVectors = FastViews.collapse(
+			featureStack);
+		RandomAccessibleInterval<? extends Composite<? extends RealType<?>>> probabilityVectors =
+			FastViews.collapse(out);
+		checkDimensions(featureVectors, probabilityVectors);
+		int numberOfClasses = numberOfClasses();
+		checkNumberOfChannels(featureStack, numberOfFeatures, "feature stack");
+		checkNumberOfChannels(out, numberOfClasses, "output image");
+		long numberOfPixels = Intervals.numElements(featureVectors);
+		float[] planarFeatures = primitiveArray(featureStack, float[].class);
+		float[] planarProbabilities = primitiveArray(out, float[].class);
+		forEachRange(numberOfPixels, (start, end) -> {
+			FeatureBlocks input = planarFeatures != null ? new PlanarFeatureBlocks(planarFeatures)
+				: new CompositeFeatureBlocks(featureVectors, start);
+			DistributionWriter output = planarProbabilities != null ? arrayDistributionWriter(
+				planarProbabilities) : cursorDistributionWriter(probabilityVectors, start);
+			float[] distributions = new float[numberOfClasses * BLOCK_SIZE];
+			for (long blockStart = start; blockStart < end; blockStart += BLOCK_SIZE) {
+				int blockSize = (int) Math.min(BLOCK_SIZE, end - blockStart);
+				input.distributionForBlock(blockStart, blockSize, distributions);
+				for (int i = 0; i < blockSize; i++)
+					output.write(blockStart + i, distributions, i * numberOfClasses);
+			}
+		});
 	}
 
-	private static void copyFromTo(Composite<FloatType> input, float[] output) {
-		for (int i = 0, len = output.length; i < len; i++)
-			output[i] = input.get(i).getRealFloat();
+	/**
+	 * Applies the random forest to the instances of a sample matrix. Writes the
+	 * index of the class with the highest probability into {@code classes}.
+	 *
+	 * @param features Sample matrix in columnar layout, as used by
+	 *          {@link RandomForestTrainer#train}. The value of feature f for
+	 *          instance i is {@code features[f * classes.length + i]}.
+	 * @param classes Output array, its length is the number of instances.
+	 */
+	public void classesForInstances(float[] features, int[] classes) {
+		int numberOfInstances = classes.length;
+		if ((long) numberOfFeatures * numberOfInstances != features.length)
+			throw new IllegalArgumentException(
+				"The size of the sample matrix doesn't match the number of features and instances.");
+		core.classesForInstances(features, 0, numberOfInstances, numberOfInstances, classes);
+	}
+
+	/**
+	 * Returns a {@link CpuRandomForestCore} for the given forest. Forests that
+	 * are too big for the arrays of a single {@link CpuRandomForestCore} are
+	 * evaluated by a {@link ChunkedRandomForestCore}.
+	 */
+	private static RandomForestCore newCore(TransparentRandomForest forest) {
+		if (!CpuRandomForestCore.fitsIntoArrays(forest))
+			return new ChunkedRandomForestCore(forest);
+		return new CpuRandomForestCore(forest);
+	}
+
+	private static void checkDimensions(RandomAccessibleInterval<?> featureVectors,
+		RandomAccessibleInterval<?> out)
+	{
+		if (!Intervals.equalDimensions(featureVectors, out))
+			throw new IllegalArgumentException(
+				"The dimensions of the feature stack and the output image don't match.");
+	}
+
+	/**
+	 * Checks the size of the last axis of the image. The backing arrays of the
+	 * images are read and written with a stride, that is derived from this
+	 * size. A wrong number of channels would therefore read or write the wrong
+	 * planes.
+	 */
+	private static void checkNumberOfChannels(RandomAccessibleInterval<?> image,
+		long expected, String name)
+	{
+		long channels = image.dimension(image.numDimensions() - 1);
+		if (channels != expected)
+			throw new IllegalArgumentException("The " + name + " has " + channels +
+				" channels, but " + expected + " are expected.");
+	}
+
+	/**
+	 * Splits the range [0, size) into chunks, that are aligned to
+	 * {@link #BLOCK_SIZE}, and processes them in parallel.
+	 */
+	private static void forEachRange(long size, RangeAction action) {
+		TaskExecutor executor = Parallelization.getTaskExecutor();
+		long numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int numTasks = (int) Math.max(1, Math.min(executor.suggestNumberOfTasks(), numBlocks));
+		List<long[]> ranges = new ArrayList<>(numTasks);
+		for (int i = 0; i < numTasks; i++) {
+			long start = numBlocks * i / numTasks * BLOCK_SIZE;
+			long end = Math.min(size, numBlocks * (i + 1) / numTasks * BLOCK_SIZE);
+			ranges.add(new long[] { start, end });
+		}
+		executor.forEach(ranges, range -> action.run(range[0], range[1]));
 	}
 
-	private static void copyFromTo(float[] input, Composite<? extends RealType<?>> output) {
-		for (int i = 0, len = input.length; i < len; i++)
-			output.get(i).setReal(input[i]);
+	private interface RangeAction {
+
+		void run(long start, long end);
+	}
+
+	// -- Reading feature vectors --
+
+	/**
+	 * Calculates the class probabilities, or the most probable classes, for a
+	 * block of consecutive pixels (in flat iteration order).
+	 */
+	private interface FeatureBlocks {
+
+		void distributionForBlock(long blockStart, int blockSize, float[] distributions);
+
+		void classesForBlock(long blockStart, int blockSize, int[] classes);
+	}
+
+	/**
+	 * Reads the features directly from the backing array of a feature stack,
+	 * where each feature is stored as one plane.
+	 */
+	private class PlanarFeatureBlocks implements FeatureBlocks {
+
+		private final float[] features;
+
+		private final int stride;
+
+		private PlanarFeatureBlocks(float[] features) {
+			this.features = features;
+			this.stride = features.length / numberOfFeatures;
+		}
+
+		@Override
+		public void distributionForBlock(long blockStart, int blockSize, float[] distributions) {
+			core.distributionForInstances(features, (int) blockStart, stride, blockSize,
+				distributions);
+		}
+
+		@Override
+		public void classesForBlock(long blockStart, int blockSize, int[] classes) {
+			core.classesForInstances(features, (int) blockStart, stride, blockSize, classes);
+		}
+	}
+
+	/**
+	 * Copies the feature vectors of a block into a buffer, such that feature
+	 * {@code f} of the i-th pixel is at {@code buffer[f * BLOCK_SIZE + i]}.
+	 */
+	private class CompositeFeatureBlocks implements FeatureBlocks {
+
+		private final Cursor<Composite<FloatType>> cursor;
+
+		private final float[] buffer = new float[numberOfFeatures * BLOCK_SIZE];
+
+		private CompositeFeatureBlocks(RandomAccessibleInterval<Composite<FloatType>> featureVectors,
+			long start)
+		{
+			this.cursor = Views.flatIterable(featureVectors).cursor();
+			this.cursor.jumpFwd(start);
+		}
+
+		@Override
+		public void distributionForBlock(long blockStart, int blockSize, float[] distributions) {
+			copyBlock(blockSize);
+			core.distributionForInstances(buffer, 0, BLOCK_SIZE, blockSize, distributions);
+		}
+
+		@Override
+		public void classesForBlock(long blockStart, int blockSize, int[] classes) {
+			copyBlock(blockSize);
+			core.classesForInstances(buffer, 0, BLOCK_SIZE, blockSize, classes);
+		}
+
+		private void copyBlock(int blockSize) {
+			for (int i = 0; i < blockSize; i++) {
+				Composite<FloatType> featureVector = cursor.next();
+				for (int f = 0; f < numberOfFeatures; f++)
+					buffer[f * BLOCK_SIZE + i] = featureVector.get(f).getRealFloat();
+			}
+		}
+	}
+
+	// -- Writing the results --
+
+	private interface LabelWriter {
+
+		void write(long index, int label);
+	}
+
+	/**
+	 * Returns the backing array of the output image, if it's an {@link ArrayImg}
+	 * backed by a byte[], short[], int[] or long[]. Returns null otherwise.
+	 */
+	private static Object integerArray(RandomAccessibleInterval<? extends IntegerType<?>> out) {
+		Object array = primitiveArray(out, Object.class);
+		boolean supported = array instanceof byte[] || array instanceof short[] ||
+			array instanceof int[] || array instanceof long[];
+		return supported ? array : null;
+	}
+
+	private static LabelWriter arrayLabelWriter(Object labels) {
+		if (labels instanceof byte[]) {
+			byte[] array = (byte[]) labels;
+			return (index, label) -> array[(int) index] = (byte) label;
+		}
+		if (labels instanceof short[]) {
+			short[] array = (short[]) labels;
+			return (index, label) -> array[(int) index] = (short) label;
+		}
+		if (labels instanceof int[]) {
+			int[] array = (int[]) labels;
+			return (index, label) -> array[(int) index] = label;
+		}
+		if (labels instanceof long[]) {
+			long[] array = (long[]) labels;
+			return (index, label) -> array[(int) index] = label;
+		}
+		throw new IllegalArgumentException("Unsupported array type: " + labels.getClass());
+	}
+
+	private static LabelWriter cursorLabelWriter(
+		RandomAccessibleInterval<? extends IntegerType<?>> out, long start)
+	{
+		Cursor<? extends IntegerType<?>> cursor = Views.flatIterable(out).cursor();
+		cursor.jumpFwd(start);
+		return (index, label) -> cursor.next().setInteger(label);
+	}
+
+	private interface DistributionWriter {
+
+		void write(long index, float[] distributions, int offset);
+	}
+
+	private DistributionWriter arrayDistributionWriter(float[] probabilities) {
+		int numberOfClasses = numberOfClasses();
+		int stride = probabilities.length / numberOfClasses;
+		return (index, distributions, offset) -> {
+			for (int k = 0; k < numberOfClasses; k++)
+				probabilities[(int) index + k * stride] = distributions[offset + k];
+		};
+	}
+
+	private DistributionWriter cursorDistributionWriter(
+		RandomAccessibleInterval<? extends Composite<? extends RealType<?>>> probabilityVectors,
+		long start)
+	{
+		int numberOfClasses = numberOfClasses();
+		Cursor<? extends Composite<? extends RealType<?>>> cursor = Views.flatIterable(
+			probabilityVectors).cursor();
+		cursor.jumpFwd(start);
+		return (index, distributions, offset) -> {
+			Composite<? extends RealType<?>> probabilityVector = cursor.next();
+			for (int k = 0; k < numberOfClasses; k++)
+				probabilityVector.get(k).setReal(distributions[offset + k]);
+		};
+	}
+
+	// -- Accessing the backing arrays --
+
+	/**
+	 * Returns the primitive array backing the given image, if the image is an
+	 * {@link ArrayImg} (or a translated {@link ArrayImg}) with one array element
+	 * per pixel. Returns null otherwise.
+	 */
+	private static <A> A primitiveArray(RandomAccessibleInterval<?> image, Class<A> arrayClass) {
+		ArrayImg<?, ?> arrayImg = asArrayImg(image);
+		if (arrayImg == null)
+			return null;
+		Fraction entitiesPerPixel = ((NativeType<?>) arrayImg.firstElement()).getEntitiesPerPixel();
+		if (entitiesPerPixel.getNumerator() != 1 || entitiesPerPixel.getDenominator() != 1)
+			return null;
+		Object access = arrayImg.update(null);
+		if (!(access instanceof ArrayDataAccess))
+			return null;
+		Object array = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+		return arrayClass.isInstance(array) ? arrayClass.cast(array) : null;
+	}
+
+	/**
+	 * Returns the {@link ArrayImg} if the image is an {@link ArrayImg} or an
+	 * {@link ArrayImg} that is only translated with {@link Views#translate}.
+	 * Returns null otherwise.
+	 */
+	private static ArrayImg<?, ?> asArrayImg(RandomAccessibleInterval<?> image) {
+		if (image instanceof ArrayImg)
+			return (ArrayImg<?, ?>) image;
+		if (!(image instanceof IntervalView))
+			return null;
+		RandomAccessible<?> source = ((IntervalView<?>) image).getSource();
+		if (!(source instanceof MixedTransformView))
+			return null;
+		MixedTransformView<?> view = (MixedTransformView<?>) source;
+		if (!(view.getSource() instanceof ArrayImg))
+			return null;
+		ArrayImg<?, ?> arrayImg = (ArrayImg<?, ?>) view.getSource();
+		MixedTransform transform = view.getTransformToSource();
+		int n = image.numDimensions();
+		if (arrayImg.numDimensions() != n || transform.numSourceDimensions() != n)
+			return null;
+		for (int d = 0; d < n; d++) {
+			boolean isTranslation = !transform.getComponentZero(d) &&
+				transform.getComponentMapping(d) == d &&
+				!transform.getComponentInversion(d);
+			if (!isTranslation || image.min(d) + transform.getTranslation(d) != 0 ||
+				image.dimension(d) != arrayImg.dimension(d))
+				return null;
+		}
+		return arrayImg;
 	}
 
 	public int numberOfFeatures() {
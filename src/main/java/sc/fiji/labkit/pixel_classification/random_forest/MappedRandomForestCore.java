@@ -0,0 +1,330 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Applies a random forest, that is stored in a file. The file is memory
+ * mapped. Multiple processes that open the same file therefore share one copy
+ * of the forest in physical memory, and the forest can be used without
+ * deserializing and flattening it first.
+ * <p>
+ * The file contains the tables of a {@link CpuRandomForestCore}, in little
+ * endian byte order:
+ *
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * int     number of features
+ * int     number of classes
+ * int     length of numTreesOfHeight
+ * int     length of attributes
+ * int     length of thresholds
+ * int     length of probabilities
+ * int[]   numTreesOfHeight
+ * float[] prior
+ * int[]   attributes
+ * float[] thresholds
+ * float[] probabilities
+ * </pre>
+ *
+ * See {@link CpuRandomForestCore} for the meaning of the tables. Each of the
+ * last three tables must fit into 2 GB, which is the limit of a single memory
+ * mapped buffer.
+ */
+public class MappedRandomForestCore implements RandomForestCore {
+
+	private static final int MAGIC = 0x52464331;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8 * Integer.BYTES;
+
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+	private final int numberOfFeatures;
+
+	private final int numClasses;
+
+	private final int[] numTreesOfHeight;
+
+	private final float[] prior;
+
+	private final IntBuffer attributes;
+
+	private final FloatBuffer thresholds;
+
+	private final FloatBuffer probabilities;
+
+	private MappedRandomForestCore(int numberOfFeatures, int numClasses, int[] numTreesOfHeight,
+		float[] prior, IntBuffer attributes, FloatBuffer thresholds, FloatBuffer probabilities)
+	{
+		this.numberOfFeatures = numberOfFeatures;
+		this.numClasses = numClasses;
+		this.numTreesOfHeight = numTreesOfHeight;
+		this.prior = prior;
+		this.attributes = attributes;
+		this.thresholds = thresholds;
+		this.probabilities = probabilities;
+	}
+
+	/**
+	 * Opens a random forest file, as written by
+	 * {@link CpuRandomForestPrediction#save}.
+	 */
+	public static MappedRandomForestCore open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = read(channel, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC)
+				throw new IOException("Not a random forest file: " + file);
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported random forest file version: " + version);
+			int numberOfFeatures = header.getInt();
+			int numClasses = header.getInt();
+			int heights = header.getInt();
+			int attributesLength = header.getInt();
+			int thresholdsLength = header.getInt();
+			int probabilitiesLength = header.getInt();
+			long position = HEADER_SIZE;
+			int[] numTreesOfHeight = new int[heights];
+			read(channel, position, heights * Integer.BYTES).asIntBuffer().get(numTreesOfHeight);
+			position += heights * Integer.BYTES;
+			float[] prior = new float[numClasses];
+			read(channel, position, numClasses * Float.BYTES).asFloatBuffer().get(prior);
+			position += numClasses * Float.BYTES;
+			IntBuffer attributes = map(channel, position, attributesLength).asIntBuffer();
+			position += (long) attributesLength * Integer.BYTES;
+			FloatBuffer thresholds = map(channel, position, thresholdsLength).asFloatBuffer();
+			position += (long) thresholdsLength * Float.BYTES;
+			FloatBuffer probabilities = map(channel, position, probabilitiesLength).asFloatBuffer();
+			return new MappedRandomForestCore(numberOfFeatures, numClasses, numTreesOfHeight, prior,
+				attributes, thresholds, probabilities);
+		}
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int size)
+		throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of random forest file.");
+		buffer.flip();
+		return buffer;
+	}
+
+	private static ByteBuffer map(FileChannel channel, long position, int length)
+		throws IOException
+	{
+		long size = (long) length * Integer.BYTES;
+		if (position + size > channel.size())
+			throw new IOException("Unexpected end of random forest file.");
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(
+			ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Writes the tables of a {@link CpuRandomForestCore} to a file.
+	 */
+	static void write(Path file, int numberOfFeatures, int numClasses, int[] numTreesOfHeight,
+		float[] prior, int[] attributes, float[] thresholds, float[] probabilities)
+		throws IOException
+	{
+		checkMappable(attributes.length);
+		checkMappable(thresholds.length);
+		checkMappable(probabilities.length);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + (numTreesOfHeight.length +
+				prior.length) * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(numberOfFeatures);
+			header.putInt(numClasses);
+			header.putInt(numTreesOfHeight.length);
+			header.putInt(attributes.length);
+			header.putInt(thresholds.length);
+			header.putInt(probabilities.length);
+			for (int value : numTreesOfHeight)
+				header.putInt(value);
+			for (float value : prior)
+				header.putFloat(value);
+			header.flip();
+			writeFully(channel, header);
+			writeInts(channel, attributes);
+			writeFloats(channel, thresholds);
+			writeFloats(channel, probabilities);
+		}
+	}
+
+	private static void checkMappable(int length) {
+		if ((long) length * Integer.BYTES > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(
+				"forest is too big to be stored in a memory mapped file");
+	}
+
+	private static void writeInts(FileChannel channel, int[] values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE * Integer.BYTES).order(
+			ByteOrder.LITTLE_ENDIAN);
+		for (int start = 0; start < values.length; start += WRITE_BUFFER_SIZE) {
+			int length = Math.min(WRITE_BUFFER_SIZE, values.length - start);
+			buffer.clear();
+			buffer.asIntBuffer().put(values, start, length);
+			buffer.limit(length * Integer.BYTES);
+			writeFully(channel, buffer);
+		}
+	}
+
+	private static void writeFloats(FileChannel channel, float[] values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE * Float.BYTES).order(
+			ByteOrder.LITTLE_ENDIAN);
+		for (int start = 0; start < values.length; start += WRITE_BUFFER_SIZE) {
+			int length = Math.min(WRITE_BUFFER_SIZE, values.length - start);
+			buffer.clear();
+			buffer.asFloatBuffer().put(values, start, length);
+			buffer.limit(length * Float.BYTES);
+			writeFully(channel, buffer);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	public int numberOfFeatures() {
+		return numberOfFeatures;
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public void distributionForInstance(float[] instance, float[] distribution) {
+		distributionForInstances(instance, 0, 1, 1, distribution);
+	}
+
+	/**
+	 * Same as {@link CpuRandomForestCore#distributionForInstances}, but the
+	 * tables are read from the memory mapped buffers.
+	 */
+	@Override
+	public void distributionForInstances(float[] features, int offset, int stride,
+		int numInstances, float[] distributions)
+	{
+		int numClasses = this.numClasses;
+		for (int i = 0; i < numInstances; i++)
+			System.arraycopy(prior, 0, distributions, i * numClasses, numClasses);
+		int attributesBase = 0;
+		int probabilitiesBase = 0;
+		int height = 1;
+		for (; height < numTreesOfHeight.length &&
+			height < CpuRandomForestCore.COMPACT_STORAGE_MIN_HEIGHT; height++)
+		{
+			int nh = numTreesOfHeight[height];
+			int numLeafs = 1 << height;
+			int dataSize = numLeafs - 1;
+			int probSize = numLeafs * numClasses;
+			for (int tree = 0; tree < nh; ++tree) {
+				for (int i = 0; i < numInstances; i++) {
+					int branchBits = evaluateTree(features, offset + i, stride, attributesBase, height);
+					accumulate(distributions, i * numClasses, probabilitiesBase + branchBits *
+						numClasses);
+				}
+				attributesBase += dataSize;
+				probabilitiesBase += probSize;
+			}
+		}
+
+		int thresholdsBase = attributesBase;
+		for (; height < numTreesOfHeight.length; height++) {
+			int nh = numTreesOfHeight[height];
+			for (int tree = 0; tree < nh; ++tree) {
+				int attrSize = attributes.get(attributesBase);
+				int probSize = attributes.get(attributesBase + 1);
+				for (int i = 0; i < numInstances; i++) {
+					int instanceOffset = offset + i;
+					int node = 0;
+					while (node >= 0) {
+						int nodeBase = attributesBase + 2 + 3 * node;
+						float attributeValue = features[instanceOffset + attributes.get(nodeBase) * stride];
+						float threshold = thresholds.get(thresholdsBase + node);
+						node = (attributeValue < threshold) ? attributes.get(nodeBase + 1)
+							: attributes.get(nodeBase + 2);
+					}
+					accumulate(distributions, i * numClasses, probabilitiesBase + node -
+						Integer.MIN_VALUE);
+				}
+				attributesBase += 2 + 3 * attrSize;
+				thresholdsBase += attrSize;
+				probabilitiesBase += probSize;
+			}
+		}
+
+		for (int i = 0; i < numInstances; i++)
+			CpuRandomForestCore.normalize(distributions, i * numClasses, numClasses);
+	}
+
+	private int evaluateTree(float[] features, int instanceOffset, int stride, int dataBase,
+		int height)
+	{
+		int branchBits = 0;
+		for (int nodeIndex = 0, depth = 0; depth < height; ++depth) {
+			int o = dataBase + nodeIndex;
+			int attributeIndex = attributes.get(o);
+			if (attributeIndex < 0) {
+				branchBits = branchBits << (height - depth);
+				break;
+			}
+			float attributeValue = features[instanceOffset + attributeIndex * stride];
+			int branch = attributeValue < thresholds.get(o) ? 0 : 1;
+			nodeIndex = (nodeIndex << 1) + branch + 1;
+			branchBits = (branchBits << 1) + branch;
+		}
+		return branchBits;
+	}
+
+	private void accumulate(float[] distributions, int distributionBase, int probabilitiesIndex) {
+		for (int k = 0; k < numClasses; k++)
+			distributions[distributionBase + k] += probabilities.get(probabilitiesIndex + k);
+	}
+}
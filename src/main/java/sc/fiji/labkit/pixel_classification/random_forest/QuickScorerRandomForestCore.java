@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+
+/**
+ * Applies a random forest to feature vectors, using the QuickScorer algorithm.
+ * <p>
+ * Instead of traversing each tree from the root to a leaf, all the nodes of
+ * the forest are grouped by attribute and sorted by threshold. For each
+ * attribute the nodes are visited in ascending order of their threshold, until
+ * the threshold is bigger than the attribute value. Each visited node would
+ * send the instance to its "bigger" child. The leafs of the "smaller" subtree of
+ * such a node can therefore not be reached. This is recorded in a bit vector
+ * per tree, that has one bit per leaf (leafs are numbered from left to right).
+ * After all attributes are processed, the leftmost remaining leaf of each tree
+ * is the leaf reached by the instance.
+ * <p>
+ * This replaces the data dependent branches of the tree traversal by a few
+ * predictable loops, which pays off for deep trees.
+ * <p>
+ * See: Lucchese et al., "QuickScorer: A Fast Algorithm to Rank Documents with
+ * Additive Ensembles of Regression Trees", SIGIR 2015.
+ */
+class QuickScorerRandomForestCore implements RandomForestCore {
+
+	private final int numClasses;
+
+	private final int numTrees;
+
+	private final int numAttributes;
+
+	private final float[] prior;
+
+	/**
+	 * The nodes that use attribute {@code a} are stored at the indices
+	 * {@code attributeOffsets[a]} to {@code attributeOffsets[a + 1] - 1}, sorted by
+	 * threshold.
+	 */
+	private final int[] attributeOffsets;
+
+	private final float[] nodeThresholds;
+
+	/** Index of the first bit vector word of the tree, the node belongs to. */
+	private final int[] nodeWordBase;
+
+	/**
+	 * Index of the leftmost leaf in the "smaller" subtree of the node.
+	 */
+	private final int[] nodeFirstLeaf;
+
+	/**
+	 * Index of the rightmost leaf in the "smaller" subtree of the node.
+	 */
+	private final int[] nodeLastLeaf;
+
+	/** Index of the first bit vector word of each tree. */
+	private final int[] treeWordBase;
+
+	/** Index into {@link #leafProbabilities} of the first leaf of each tree. */
+	private final int[] treeLeafBase;
+
+	/** Total number of bit vector words required for all trees. */
+	private final int numWords;
+
+	private final float[] leafProbabilities;
+
+	public QuickScorerRandomForestCore(FastRandomForest classifier) {
+		this(TransparentRandomForest.forFastRandomForest(classifier));
+	}
+
+	public QuickScorerRandomForestCore(TransparentRandomForest forest) {
+		this.numClasses = forest.numberOfClasses();
+		this.prior = new float[numClasses];
+		List<TransparentRandomTree> trees = new ArrayList<>();
+		for (TransparentRandomTree tree : forest.trees()) {
+			if (tree.isLeaf())
+				for (int k = 0; k < numClasses; k++)
+					prior[k] += (float) tree.classProbabilities()[k];
+			else
+				trees.add(tree);
+		}
+		this.numTrees = trees.size();
+		this.treeWordBase = new int[numTrees];
+		this.treeLeafBase = new int[numTrees];
+		List<Node> nodes = new ArrayList<>();
+		List<double[]> leafs = new ArrayList<>();
+		int words = 0;
+		for (int t = 0; t < numTrees; t++) {
+			TransparentRandomTree tree = trees.get(t);
+			treeWordBase[t] = words;
+			treeLeafBase[t] = leafs.size();
+			collectNodes(tree, words, leafs.size(), nodes, leafs);
+			words += (tree.numberOfLeafs() + 63) / 64;
+		}
+		this.numWords = words;
+		this.leafProbabilities = new float[leafs.size() * numClasses];
+		for (int i = 0; i < leafs.size(); i++)
+			for (int k = 0; k < numClasses; k++)
+				leafProbabilities[i * numClasses + k] = (float) leafs.get(i)[k];
+		nodes.sort(Comparator.comparingInt((Node node) -> node.attribute).thenComparingDouble(
+			node -> node.threshold));
+		this.numAttributes = nodes.stream().mapToInt(node -> node.attribute + 1).max().orElse(0);
+		this.attributeOffsets = new int[numAttributes + 1];
+		this.nodeThresholds = new float[nodes.size()];
+		this.nodeWordBase = new int[nodes.size()];
+		this.nodeFirstLeaf = new int[nodes.size()];
+		this.nodeLastLeaf = new int[nodes.size()];
+		for (int i = 0; i < nodes.size(); i++) {
+			Node node = nodes.get(i);
+			attributeOffsets[node.attribute + 1] = i + 1;
+			nodeThresholds[i] = node.threshold;
+			nodeWordBase[i] = node.wordBase;
+			nodeFirstLeaf[i] = node.firstLeaf;
+			nodeLastLeaf[i] = node.lastLeaf;
+		}
+		for (int a = 1; a <= numAttributes; a++)
+			attributeOffsets[a] = Math.max(attributeOffsets[a], attributeOffsets[a - 1]);
+	}
+
+	/**
+	 * Adds all the nodes and leafs of the given subtree to the lists. Leafs are
+	 * added in left to right order.
+	 *
+	 * @return the number of leafs in the subtree.
+	 */
+	private static int collectNodes(TransparentRandomTree node, int wordBase, int leafBase,
+		List<Node> nodes, List<double[]> leafs)
+	{
+		if (node.isLeaf()) {
+			leafs.add(node.classProbabilities());
+			return 1;
+		}
+		int firstLeaf = leafs.size() - leafBase;
+		int smallerLeafs = collectNodes(node.smallerChild(), wordBase, leafBase, nodes, leafs);
+		int biggerLeafs = collectNodes(node.biggerChild(), wordBase, leafBase, nodes, leafs);
+		nodes.add(new Node(node.attributeIndex(), (float) node.threshold(), wordBase, firstLeaf,
+			firstLeaf + smallerLeafs - 1));
+		return smallerLeafs + biggerLeafs;
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numClasses;
+	}
+
+	@Override
+	public void distributionForInstance(float[] instance, float[] distribution) {
+		distributionForInstances(instance, 0, 1, 1, distribution);
+	}
+
+	@Override
+	public void distributionForInstances(float[] features, int offset, int stride,
+		int numInstances, float[] distributions)
+	{
+		long[] bitVectors = new long[numWords];
+		for (int i = 0; i < numInstances; i++)
+			distributionForInstance(features, offset + i, stride, bitVectors, distributions, i *
+				numClasses);
+	}
+
+	private void distributionForInstance(float[] features, int instanceOffset, int stride,
+		long[] bitVectors, float[] distributions, int distributionBase)
+	{
+		Arrays.fill(bitVectors, -1L);
+		for (int a = 0; a < numAttributes; a++) {
+			final int end = attributeOffsets[a + 1];
+			int node = attributeOffsets[a];
+			if (node == end)
+				continue;
+			final float attributeValue = features[instanceOffset + a * stride];
+			// NB: The negated comparison makes sure that NaN values go to the bigger
+			// child, just like in the tree traversal.
+			for (; node < end && !(attributeValue < nodeThresholds[node]); node++)
+				clearBits(bitVectors, nodeWordBase[node], nodeFirstLeaf[node], nodeLastLeaf[node]);
+		}
+		for (int k = 0; k < numClasses; k++)
+			distributions[distributionBase + k] = prior[k];
+		for (int t = 0; t < numTrees; t++) {
+			int word = treeWordBase[t];
+			while (bitVectors[word] == 0)
+				word++;
+			final int leaf = (word - treeWordBase[t]) * 64 + Long.numberOfTrailingZeros(
+				bitVectors[word]);
+			final int probabilitiesBase = (treeLeafBase[t] + leaf) * numClasses;
+			for (int k = 0; k < numClasses; k++)
+				distributions[distributionBase + k] += leafProbabilities[probabilitiesBase + k];
+		}
+		float sum = 0;
+		for (int k = 0; k < numClasses; k++)
+			sum += distributions[distributionBase + k];
+		for (int k = 0; k < numClasses; k++)
+			distributions[distributionBase + k] /= sum;
+	}
+
+	/**
+	 * Sets the bits {@code firstBit} to {@code lastBit} (inclusive) of the bit
+	 * vector that starts at {@code wordBase} to zero.
+	 */
+	private static void clearBits(long[] bitVectors, int wordBase, int firstBit, int lastBit) {
+		final int firstWord = wordBase + (firstBit >>> 6);
+		final int lastWord = wordBase + (lastBit >>> 6);
+		final long firstMask = -1L << firstBit;
+		final long lastMask = -1L >>> (63 - (lastBit & 63));
+		if (firstWord == lastWord) {
+			bitVectors[firstWord] &= ~(firstMask & lastMask);
+		}
+		else {
+			bitVectors[firstWord] &= ~firstMask;
+			for (int word = firstWord + 1; word < lastWord; word++)
+				bitVectors[word] = 0;
+			bitVectors[lastWord] &= ~lastMask;
+		}
+	}
+
+	private static class Node {
+
+		private final int attribute;
+
+		private final float threshold;
+
+		private final int wordBase;
+
+		private final int firstLeaf;
+
+		private final int lastLeaf;
+
+		private Node(int attribute, float threshold, int wordBase, int firstLeaf, int lastLeaf) {
+			this.attribute = attribute;
+			this.threshold = threshold;
+			this.wordBase = wordBase;
+			this.firstLeaf = firstLeaf;
+			this.lastLeaf = lastLeaf;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.Collections;
+
+/**
+ * Weka {@link weka.classifiers.Classifier}, that is trained by a
+ * {@link RandomForestTrainer}. This allows to use the in-house random forest
+ * training in all places where a weka classifier is expected, for example in
+ * {@link sc.fiji.labkit.pixel_classification.classification.Segmenter}.
+ * <p>
+ * The class attribute must be the last attribute of the training data.
+ * <p>
+ * By default, each call of {@link #buildClassifier} trains a new forest. With
+ * {@link #setUpdateFraction} the classifier can be switched to incremental
+ * updates: If the classifier is already trained, only the given fraction of the
+ * trees is replaced by trees trained on the new data. The replaced trees are
+ * chosen round robin, such that the oldest trees are replaced first. This is
+ * useful in interactive applications, where training data is added
+ * continuously.
+ * <p>
+ * An incremental update makes the tree training, and the preparation of the
+ * trees for prediction by {@link CpuRandomForestPrediction#update}, scale with
+ * the update fraction. It doesn't make the whole retraining proportional to
+ * the size of the change: the features of all labeled pixels are still
+ * calculated for every training, and each new tree draws its bootstrap sample
+ * from all labeled pixels.
+ */
+public class RandomForestClassifier extends AbstractClassifier {
+
+	private final RandomForestTrainer trainer;
+
+	private TransparentRandomForest forest = new TransparentRandomForest(Collections
+		.emptyList());
+
+	private int numberOfClasses;
+
+	private int numberOfFeatures;
+
+	private double updateFraction = 1;
+
+	/** Number of incremental updates done so far. */
+	private int generation = 0;
+
+	/** Index of the first tree, that is replaced by the next update. */
+	private int nextTree = 0;
+
+	public RandomForestClassifier() {
+		this(new RandomForestTrainer());
+	}
+
+	public RandomForestClassifier(RandomForestTrainer trainer) {
+		this.trainer = trainer;
+	}
+
+	@Override
+	public void buildClassifier(Instances data) {
+		int classIndex = data.classIndex();
+		if (classIndex != data.numAttributes() - 1)
+			throw new IllegalArgumentException("The class attribute must be the last attribute.");
+		int numberOfFeatures = classIndex;
+		int numberOfInstances = data.numInstances();
+		float[] features = new float[numberOfFeatures * numberOfInstances];
+		int[] classes = new int[numberOfInstances];
+		for (int i = 0; i < numberOfInstances; i++) {
+			Instance instance = data.instance(i);
+			for (int f = 0; f < numberOfFeatures; f++)
+				features[f * numberOfInstances + i] = (float) instance.value(f);
+			classes[i] = (int) instance.classValue();
+		}
+		train(features, numberOfFeatures, classes, data.numClasses());
+	}
+
+	/**
+	 * Trains the classifier on a columnar sample matrix, see
+	 * {@link RandomForestTrainer#train}. Only a fraction of the trees is
+	 * retrained, if incremental updates are enabled, see
+	 * {@link #setUpdateFraction}.
+	 */
+	public void train(float[] features, int numberOfFeatures, int[] classes,
+		int numberOfClasses)
+	{
+		if (canUpdate(numberOfFeatures, numberOfClasses)) {
+			int count = numberOfTreesPerUpdate();
+			generation++;
+			this.forest = trainer.retrainTrees(forest, nextTree, count, generation, features,
+				numberOfFeatures, classes, numberOfClasses);
+			this.nextTree = (nextTree + count) % trainer.numberOfTrees();
+		}
+		else {
+			this.forest = trainer.train(features, numberOfFeatures, classes, numberOfClasses);
+			this.nextTree = 0;
+		}
+		this.numberOfClasses = numberOfClasses;
+		this.numberOfFeatures = numberOfFeatures;
+	}
+
+	private boolean canUpdate(int numberOfFeatures, int numberOfClasses) {
+		return isIncremental() && forest.trees().size() == trainer.numberOfTrees() &&
+			this.numberOfClasses == numberOfClasses && this.numberOfFeatures == numberOfFeatures;
+	}
+
+	/**
+	 * Sets the fraction of the trees, that are replaced when the classifier is
+	 * trained again. A value of 1 (the default) means, that a new forest is
+	 * trained each time.
+	 */
+	public void setUpdateFraction(double updateFraction) {
+		if (!(updateFraction > 0 && updateFraction <= 1))
+			throw new IllegalArgumentException("Update fraction must be in the range (0, 1].");
+		this.updateFraction = updateFraction;
+	}
+
+	public double updateFraction() {
+		return updateFraction;
+	}
+
+	public boolean isIncremental() {
+		return updateFraction < 1;
+	}
+
+	/**
+	 * Returns the number of trees, that are replaced by an incremental update.
+	 */
+	public int numberOfTreesPerUpdate() {
+		int numberOfTrees = trainer.numberOfTrees();
+		return Math.max(1, Math.min(numberOfTrees, (int) Math.round(updateFraction *
+			numberOfTrees)));
+	}
+
+	@Override
+	public double[] distributionForInstance(Instance instance) {
+		return forest.distributionForInstance(instance, numberOfClasses);
+	}
+
+	public TransparentRandomForest forest() {
+		return forest;
+	}
+
+	public RandomForestTrainer trainer() {
+		return trainer;
+	}
+}
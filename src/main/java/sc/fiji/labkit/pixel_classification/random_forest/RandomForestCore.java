@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import sc.fiji.labkit.pixel_classification.utils.ArrayUtils;
+
+/**
+ * Common interface of the CPU implementations, that apply a random forest to
+ * feature vectors. Implementations must be thread safe.
+ */
+interface RandomForestCore {
+
+	int numberOfClasses();
+
+	/**
+	 * Applies the random forest to the given instance. Writes the class
+	 * probabilities to {@code distribution}.
+	 *
+	 * @param instance Instance / feature vector, array length must equal
+	 *          {@code numberOfFeatures}.
+	 * @param distribution This is the output buffer, array length must equal number
+	 *          of classes.
+	 */
+	void distributionForInstance(float[] instance, float[] distribution);
+
+	/**
+	 * Applies the random forest to a block of instances. The value of attribute
+	 * {@code a} of instance {@code i} is expected at
+	 * {@code features[offset + a * stride + i]}. The class probabilities of
+	 * instance {@code i} are written to
+	 * {@code distributions[i * numberOfClasses() + k]}.
+	 */
+	void distributionForInstances(float[] features, int offset, int stride, int numInstances,
+		float[] distributions);
+
+	/**
+	 * Applies the random forest to a block of instances, and writes the index of
+	 * the class with the highest probability of instance {@code i} to
+	 * {@code classes[i]}. The layout of {@code features} is the same as for
+	 * {@link #distributionForInstances}. The result must equal the index of the
+	 * maximum of the distribution, as returned by
+	 * {@link ArrayUtils#findMax(float[], int, int)}.
+	 */
+	default void classesForInstances(float[] features, int offset, int stride, int numInstances,
+		int[] classes)
+	{
+		int numClasses = numberOfClasses();
+		float[] distributions = new float[numInstances * numClasses];
+		distributionForInstances(features, offset, stride, numInstances, distributions);
+		for (int i = 0; i < numInstances; i++)
+			classes[i] = ArrayUtils.findMax(distributions, i * numClasses, numClasses);
+	}
+}
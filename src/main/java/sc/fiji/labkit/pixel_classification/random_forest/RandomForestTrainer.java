@@ -0,0 +1,759 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import net.imglib2.parallel.Parallelization;
+import sc.fiji.labkit.pixel_classification.utils.ArrayUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Trains a random forest on a columnar sample matrix, without the detour over
+ * weka {@link weka.core.Instances}. The result is a
+ * {@link TransparentRandomForest}, that can directly be used by
+ * {@link CpuRandomForestCore} or {@link CpuRandomForestPrediction}.
+ * <p>
+ * The algorithm follows hr.irb.fastRandomForest.FastRandomForest: Each tree is
+ * trained on a bootstrap sample of the instances. At each node a number of
+ * randomly chosen features is tested, and the split with the lowest Gini
+ * impurity is used. Trees are grown until the nodes are pure, or until an
+ * optional maximal depth is reached. The defaults (200 trees, 2 random
+ * features, seed 1) are the same as in
+ * {@link sc.fiji.labkit.pixel_classification.classification.Trainer#initRandomForest()}.
+ * <p>
+ * The trees are trained in parallel, using the {@link Parallelization}
+ * task executor. Each tree uses its own random number generator, therefore the
+ * result doesn't depend on the number of threads.
+ */
+public class RandomForestTrainer implements Serializable {
+
+	/**
+	 * How the best threshold for a feature is searched at a node.
+	 */
+	public enum SplitMode {
+			/**
+			 * The values of the node are sorted, and all thresholds between distinct
+			 * values are evaluated. The runtime of a node is O(n log n).
+			 */
+			EXACT,
+			/**
+			 * Each feature is divided into at most 256 bins once, before the trees
+			 * are trained. The best threshold is searched on a histogram of the bins.
+			 * The runtime of a node is O(n), and the histograms of the bigger child
+			 * are calculated by subtraction where possible. Recommended for training
+			 * sets with millions of instances.
+			 */
+			HISTOGRAM
+	}
+
+	private final int numberOfTrees;
+
+	private final int numberOfRandomFeatures;
+
+	private final int seed;
+
+	private final SplitMode splitMode;
+
+	private final int maxDepth;
+
+	public RandomForestTrainer() {
+		this(200, 2, 1);
+	}
+
+	public RandomForestTrainer(int numberOfTrees, int numberOfRandomFeatures, int seed) {
+		this(numberOfTrees, numberOfRandomFeatures, seed, SplitMode.EXACT);
+	}
+
+	public RandomForestTrainer(int numberOfTrees, int numberOfRandomFeatures, int seed,
+		SplitMode splitMode)
+	{
+		this(numberOfTrees, numberOfRandomFeatures, seed, splitMode, 0);
+	}
+
+	/**
+	 * @param maxDepth Maximal depth of the trees, the root node has depth zero.
+	 *          Zero means unlimited, the trees are grown until the nodes are
+	 *          pure.
+	 */
+	public RandomForestTrainer(int numberOfTrees, int numberOfRandomFeatures, int seed,
+		SplitMode splitMode, int maxDepth)
+	{
+		if (numberOfTrees < 1 || numberOfRandomFeatures < 1)
+			throw new IllegalArgumentException(
+				"Number of trees and number of random features must be positive.");
+		if (maxDepth < 0)
+			throw new IllegalArgumentException("Maximal depth must not be negative.");
+		this.numberOfTrees = numberOfTrees;
+		this.numberOfRandomFeatures = numberOfRandomFeatures;
+		this.seed = seed;
+		this.splitMode = splitMode;
+		this.maxDepth = maxDepth;
+	}
+
+	public int numberOfTrees() {
+		return numberOfTrees;
+	}
+
+	public int numberOfRandomFeatures() {
+		return numberOfRandomFeatures;
+	}
+
+	public int seed() {
+		return seed;
+	}
+
+	public SplitMode splitMode() {
+		return splitMode;
+	}
+
+	public int maxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Trains a random forest.
+	 *
+	 * @param features Sample matrix in columnar layout. The value of feature f
+	 *          for instance i is {@code features[f * classes.length + i]}.
+	 * @param numberOfFeatures Number of features per instance.
+	 * @param classes The class index of each instance.
+	 * @param numberOfClasses Number of classes. Class indices must be in the range
+	 *          [0, numberOfClasses).
+	 */
+	public TransparentRandomForest train(float[] features, int numberOfFeatures, int[] classes,
+		int numberOfClasses)
+	{
+		checkSampleMatrix(features, numberOfFeatures, classes, numberOfClasses);
+		List<TransparentRandomTree> trees = trainTrees(treeSeeds(seed, numberOfTrees), features,
+			numberOfFeatures, classes, numberOfClasses);
+		return new TransparentRandomForest(Collections.unmodifiableList(trees));
+	}
+
+	/**
+	 * Trains only the trees with indices {@code firstTree} to
+	 * {@code firstTree + count - 1}. These trees are identical to the
+	 * corresponding trees of the forest returned by {@link #train}.
+	 * <p>
+	 * This allows to split the training of a big forest into batches, for
+	 * example to distribute it over multiple processes. The results can be
+	 * combined with {@link TransparentRandomForest#merge}, in the order of the
+	 * tree indices.
+	 */
+	public TransparentRandomForest trainTreeRange(int firstTree, int count, float[] features,
+		int numberOfFeatures, int[] classes, int numberOfClasses)
+	{
+		if (firstTree < 0 || count < 0 || firstTree + count > numberOfTrees)
+			throw new IllegalArgumentException("Invalid tree range: " + firstTree + " to " +
+				(firstTree + count - 1));
+		checkSampleMatrix(features, numberOfFeatures, classes, numberOfClasses);
+		List<Long> treeSeeds = treeSeeds(seed, firstTree + count).subList(firstTree, firstTree +
+			count);
+		List<TransparentRandomTree> trees = trainTrees(treeSeeds, features, numberOfFeatures,
+			classes, numberOfClasses);
+		return new TransparentRandomForest(Collections.unmodifiableList(trees));
+	}
+
+	/**
+	 * Returns a copy of the forest, where some trees are replaced by trees, that
+	 * are trained on the given sample matrix. All other trees are kept. The
+	 * replaced trees are the trees with indices {@code firstTree} to
+	 * {@code firstTree + count - 1}, modulo the number of trees.
+	 * <p>
+	 * This allows to quickly update a forest, when new training data is added.
+	 * The runtime is proportional to the number of replaced trees.
+	 *
+	 * @param generation Used to derive the random seeds of the new trees. Should
+	 *          be different for each update of a forest.
+	 */
+	public TransparentRandomForest retrainTrees(TransparentRandomForest forest, int firstTree,
+		int count, int generation, float[] features, int numberOfFeatures, int[] classes,
+		int numberOfClasses)
+	{
+		checkSampleMatrix(features, numberOfFeatures, classes, numberOfClasses);
+		List<TransparentRandomTree> trees = new ArrayList<>(forest.trees());
+		if (count < 0 || count > trees.size())
+			throw new IllegalArgumentException("Invalid number of trees to replace: " + count);
+		if (forest.numberOfClasses() != numberOfClasses)
+			throw new IllegalArgumentException(
+				"The number of classes of the forest and the training data don't match.");
+		long updateSeed = seed + 0x9E3779B97F4A7C15L * generation;
+		List<TransparentRandomTree> newTrees = trainTrees(treeSeeds(updateSeed, count), features,
+			numberOfFeatures, classes, numberOfClasses);
+		for (int i = 0; i < count; i++)
+			trees.set(Math.floorMod(firstTree + i, trees.size()), newTrees.get(i));
+		return new TransparentRandomForest(Collections.unmodifiableList(trees));
+	}
+
+	/**
+	 * Returns the out-of-bag accuracy of a forest: Each instance is classified
+	 * by the trees, that didn't use it for training. The result is the fraction
+	 * of correctly classified instances. Instances, that were used by all trees,
+	 * are ignored.
+	 * <p>
+	 * The bootstrap samples of the trees are reconstructed from the random
+	 * seeds, that are stored in the trees. This works for all forests returned
+	 * by {@link #train}, {@link #trainTreeRange}, {@link #retrainTrees} and
+	 * {@link TransparentRandomForest#merge} of those. But all trees must have
+	 * been trained on the given sample matrix. Trees, that were updated with a
+	 * different sample matrix, give a wrong estimate.
+	 *
+	 * @throws IllegalArgumentException if a tree doesn't know its bootstrap seed,
+	 *           for example because it was converted from a FastRandomForest.
+	 */
+	public double outOfBagAccuracy(TransparentRandomForest forest, float[] features,
+		int numberOfFeatures, int[] classes, int numberOfClasses)
+	{
+		checkSampleMatrix(features, numberOfFeatures, classes, numberOfClasses);
+		if (forest.numberOfClasses() != numberOfClasses)
+			throw new IllegalArgumentException(
+				"The number of classes of the forest and the training data don't match.");
+		for (TransparentRandomTree tree : forest.trees())
+			if (tree.bootstrapSeed() == null)
+				throw new IllegalArgumentException(
+					"The forest contains a tree with unknown bootstrap seed.");
+		int numberOfInstances = classes.length;
+		double[] votes = new double[numberOfInstances * numberOfClasses];
+		boolean[] outOfBag = new boolean[numberOfInstances];
+		for (TransparentRandomTree tree : forest.trees()) {
+			int[] weights = bootstrapWeights(new Random(tree.bootstrapSeed()), numberOfInstances);
+			for (int i = 0; i < numberOfInstances; i++) {
+				if (weights[i] > 0)
+					continue;
+				outOfBag[i] = true;
+				double[] probabilities = leaf(tree, features, numberOfInstances, i)
+					.classProbabilities();
+				for (int c = 0; c < numberOfClasses; c++)
+					votes[i * numberOfClasses + c] += probabilities[c];
+			}
+		}
+		int correct = 0;
+		int total = 0;
+		for (int i = 0; i < numberOfInstances; i++) {
+			if (!outOfBag[i])
+				continue;
+			total++;
+			double[] distribution = Arrays.copyOfRange(votes, i * numberOfClasses, (i + 1) *
+				numberOfClasses);
+			if (ArrayUtils.findMax(distribution) == classes[i])
+				correct++;
+		}
+		return total == 0 ? Double.NaN : (double) correct / total;
+	}
+
+	private static TransparentRandomTree leaf(TransparentRandomTree node, float[] features,
+		int numberOfInstances, int instance)
+	{
+		while (!node.isLeaf())
+			node = features[node.attributeIndex() * numberOfInstances + instance] < node
+				.threshold() ? node.smallerChild() : node.biggerChild();
+		return node;
+	}
+
+	/**
+	 * Draws the bootstrap sample of a tree. Returns the number of times, each
+	 * instance occurs in the sample.
+	 */
+	private static int[] bootstrapWeights(Random random, int numberOfInstances) {
+		int[] weights = new int[numberOfInstances];
+		for (int i = 0; i < numberOfInstances; i++)
+			weights[random.nextInt(numberOfInstances)]++;
+		return weights;
+	}
+
+	private static void checkSampleMatrix(float[] features, int numberOfFeatures, int[] classes,
+		int numberOfClasses)
+	{
+		if ((long) numberOfFeatures * classes.length != features.length)
+			throw new IllegalArgumentException(
+				"The size of the sample matrix doesn't match the number of features and instances.");
+		for (int c : classes)
+			if (c < 0 || c >= numberOfClasses)
+				throw new IllegalArgumentException("Class index out of range: " + c);
+	}
+
+	/**
+	 * Returns the random seeds of the first {@code count} trees. Each tree uses
+	 * its own random number generator, initialized with its seed. The seed of a
+	 * tree only depends on the trainer's seed and the tree index.
+	 */
+	private static List<Long> treeSeeds(long seed, int count) {
+		Random random = new Random(seed);
+		List<Long> treeSeeds = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			treeSeeds.add(random.nextLong());
+		return treeSeeds;
+	}
+
+	private List<TransparentRandomTree> trainTrees(List<Long> treeSeeds, float[] features,
+		int numberOfFeatures, int[] classes, int numberOfClasses)
+	{
+		BinnedFeatures binnedFeatures = splitMode == SplitMode.HISTOGRAM ? BinnedFeatures.create(
+			features, numberOfFeatures, classes.length) : null;
+		List<TransparentRandomTree> trees = Parallelization.getTaskExecutor().forEachApply(
+			treeSeeds, treeSeed -> {
+				Random treeRandom = new Random(treeSeed);
+				TreeBuilder builder = binnedFeatures == null ? new ExactTreeBuilder(features,
+					numberOfFeatures, classes, numberOfClasses, numberOfRandomFeatures, maxDepth,
+					treeRandom) : new HistogramTreeBuilder(binnedFeatures, numberOfFeatures, classes,
+						numberOfClasses, numberOfRandomFeatures, maxDepth, treeRandom);
+				return builder.build().withBootstrapSeed(treeSeed);
+			});
+		return new ArrayList<>(trees);
+	}
+
+	/**
+	 * Trains a single tree on a bootstrap sample. The instances of a node are
+	 * stored as a range in {@link #indices}. This range is partitioned in place,
+	 * when the node is split.
+	 */
+	private abstract static class TreeBuilder {
+
+		protected final int numberOfFeatures;
+
+		protected final int numberOfInstances;
+
+		protected final int[] classes;
+
+		protected final int numberOfClasses;
+
+		private final int numberOfRandomFeatures;
+
+		private final int maxDepth;
+
+		private final Random random;
+
+		/** Number of times, each instance occurs in the bootstrap sample. */
+		protected final int[] weights;
+
+		/** Indices of the instances, that occur in the bootstrap sample. */
+		protected final int[] indices;
+
+		private final int[] featureOrder;
+
+		private TreeBuilder(int numberOfFeatures, int[] classes, int numberOfClasses,
+			int numberOfRandomFeatures, int maxDepth, Random random)
+		{
+			this.numberOfFeatures = numberOfFeatures;
+			this.numberOfInstances = classes.length;
+			this.classes = classes;
+			this.numberOfClasses = numberOfClasses;
+			this.numberOfRandomFeatures = numberOfRandomFeatures;
+			this.maxDepth = maxDepth;
+			this.random = random;
+			this.weights = bootstrapWeights(random, numberOfInstances);
+			this.indices = bootstrapIndices(weights);
+			this.featureOrder = new int[numberOfFeatures];
+			for (int i = 0; i < numberOfFeatures; i++)
+				featureOrder[i] = i;
+		}
+
+		private static int[] bootstrapIndices(int[] weights) {
+			int count = 0;
+			for (int weight : weights)
+				if (weight > 0)
+					count++;
+			int[] indices = new int[count];
+			int j = 0;
+			for (int i = 0; i < weights.length; i++)
+				if (weights[i] > 0)
+					indices[j++] = i;
+			return indices;
+		}
+
+		protected TransparentRandomTree build() {
+			return buildNode(0, indices.length, 0);
+		}
+
+		protected TransparentRandomTree buildNode(int start, int end, int depth) {
+			long[] classWeights = classWeights(start, end);
+			long totalWeight = sum(classWeights);
+			if (isLeaf(classWeights, totalWeight, depth))
+				return leaf(classWeights, totalWeight);
+			Split split = findBestSplit(start, end, classWeights, totalWeight);
+			if (split == null)
+				return leaf(classWeights, totalWeight);
+			int middle = partition(start, end, split);
+			return TransparentRandomTree.node(split.feature, split.threshold,
+				buildNode(start, middle, depth + 1), buildNode(middle, end, depth + 1));
+		}
+
+		protected boolean isLeaf(long[] classWeights, long totalWeight, int depth) {
+			return totalWeight < 2 || isPure(classWeights) || (maxDepth > 0 && depth >= maxDepth);
+		}
+
+		protected long[] classWeights(int start, int end) {
+			long[] classWeights = new long[numberOfClasses];
+			for (int j = start; j < end; j++) {
+				int index = indices[j];
+				classWeights[classes[index]] += weights[index];
+			}
+			return classWeights;
+		}
+
+		protected TransparentRandomTree leaf(long[] classWeights, long totalWeight) {
+			double[] probabilities = new double[numberOfClasses];
+			for (int c = 0; c < numberOfClasses; c++)
+				probabilities[c] = (double) classWeights[c] / totalWeight;
+			return TransparentRandomTree.leaf(probabilities);
+		}
+
+		/**
+		 * Tests at least {@link #numberOfRandomFeatures} randomly chosen features.
+		 * If none of them allows a split, that reduces the impurity, more features
+		 * are tested, until all features are used up. Returns null if no such split
+		 * exists.
+		 */
+		protected Split findBestSplit(int start, int end, long[] classWeights, long totalWeight) {
+			double parentScore = sumOfSquares(classWeights) / totalWeight;
+			Split best = null;
+			for (int i = 0; i < numberOfFeatures; i++) {
+				if (i >= numberOfRandomFeatures && best != null)
+					break;
+				int r = i + random.nextInt(numberOfFeatures - i);
+				int feature = featureOrder[r];
+				featureOrder[r] = featureOrder[i];
+				featureOrder[i] = feature;
+				Split split = findBestSplit(start, end, feature, classWeights, totalWeight);
+				if (split != null && split.score > parentScore && (best == null ||
+					split.score > best.score))
+					best = split;
+			}
+			return best;
+		}
+
+		/**
+		 * Returns the best split of the node for the given feature, or null if
+		 * all instances have the same value. The score, that is maximized, is
+		 * sum_c(left_c^2) / left + sum_c(right_c^2) / right, which is equivalent
+		 * to minimizing the weighted Gini impurity.
+		 */
+		protected abstract Split findBestSplit(int start, int end, int feature,
+			long[] classWeights, long totalWeight);
+
+		/**
+		 * Moves the instances, that go to the smaller child, to the beginning of
+		 * the range. Returns the start of the second part.
+		 */
+		protected int partition(int start, int end, Split split) {
+			int i = start;
+			int j = end - 1;
+			while (i <= j) {
+				if (goesToSmallerChild(split, indices[i]))
+					i++;
+				else {
+					int tmp = indices[i];
+					indices[i] = indices[j];
+					indices[j] = tmp;
+					j--;
+				}
+			}
+			return i;
+		}
+
+		protected abstract boolean goesToSmallerChild(Split split, int index);
+	}
+
+	/**
+	 * Finds the best threshold by sorting the instances of the node.
+	 */
+	private static class ExactTreeBuilder extends TreeBuilder {
+
+		private final float[] features;
+
+		/** Buffer used to sort the instances of a node by a feature value. */
+		private final long[] sortKeys;
+
+		private ExactTreeBuilder(float[] features, int numberOfFeatures, int[] classes,
+			int numberOfClasses, int numberOfRandomFeatures, int maxDepth, Random random)
+		{
+			super(numberOfFeatures, classes, numberOfClasses, numberOfRandomFeatures, maxDepth,
+				random);
+			this.features = features;
+			this.sortKeys = new long[indices.length];
+		}
+
+		/**
+		 * Sorts the instances of the node by the value of the given feature, and
+		 * evaluates all thresholds between two successive distinct values.
+		 */
+		@Override
+		protected Split findBestSplit(int start, int end, int feature, long[] classWeights,
+			long totalWeight)
+		{
+			int size = end - start;
+			int featureOffset = feature * numberOfInstances;
+			for (int j = 0; j < size; j++)
+				sortKeys[j] = ((long) sortableBits(features[featureOffset + indices[start + j]]) << 32) |
+					j;
+			Arrays.sort(sortKeys, 0, size);
+			long[] leftWeights = new long[numberOfClasses];
+			long leftTotal = 0;
+			double leftSquares = 0;
+			double rightSquares = sumOfSquares(classWeights);
+			double bestScore = Double.NEGATIVE_INFINITY;
+			int bestPosition = -1;
+			float value = valueAt(featureOffset, start, 0);
+			for (int j = 0; j < size - 1; j++) {
+				int index = indices[start + (int) sortKeys[j]];
+				int c = classes[index];
+				long w = weights[index];
+				long left = leftWeights[c];
+				long right = classWeights[c] - left;
+				leftSquares += (double) (2 * left + w) * w;
+				rightSquares -= (double) (2 * right - w) * w;
+				leftWeights[c] = left + w;
+				leftTotal += w;
+				float next = valueAt(featureOffset, start, j + 1);
+				if (value < next) {
+					double score = leftSquares / leftTotal + rightSquares / (totalWeight - leftTotal);
+					if (score > bestScore) {
+						bestScore = score;
+						bestPosition = j;
+					}
+				}
+				value = next;
+			}
+			if (bestPosition < 0)
+				return null;
+			float smaller = valueAt(featureOffset, start, bestPosition);
+			float bigger = valueAt(featureOffset, start, bestPosition + 1);
+			return new Split(feature, threshold(smaller, bigger), -1, bestScore);
+		}
+
+		private float valueAt(int featureOffset, int start, int sortedPosition) {
+			return features[featureOffset + indices[start + (int) sortKeys[sortedPosition]]];
+		}
+
+		@Override
+		protected boolean goesToSmallerChild(Split split, int index) {
+			return features[split.feature * numberOfInstances + index] < split.threshold;
+		}
+	}
+
+	/**
+	 * Finds the best threshold on a histogram of the {@link BinnedFeatures}.
+	 * <p>
+	 * The histograms calculated for a node are kept, while its children are
+	 * trained. The smaller child is trained first. The histograms of the bigger
+	 * child are then calculated as the difference between the histograms of the
+	 * parent and the smaller child, if both contain the respective feature.
+	 * Otherwise they are calculated from the instances.
+	 */
+	private static class HistogramTreeBuilder extends TreeBuilder {
+
+		private final BinnedFeatures bins;
+
+		/**
+		 * Histograms of the parent node, its smaller child and the current node.
+		 * Maps feature index to histogram. The histogram entry for bin b and class
+		 * c is at index {@code b * numberOfClasses + c}.
+		 */
+		private TIntObjectHashMap<long[]> parentHistograms, siblingHistograms, histograms;
+
+		private HistogramTreeBuilder(BinnedFeatures bins, int numberOfFeatures, int[] classes,
+			int numberOfClasses, int numberOfRandomFeatures, int maxDepth, Random random)
+		{
+			super(numberOfFeatures, classes, numberOfClasses, numberOfRandomFeatures, maxDepth,
+				random);
+			this.bins = bins;
+		}
+
+		@Override
+		protected TransparentRandomTree build() {
+			return buildNode(0, indices.length, 0, null, null, new TIntObjectHashMap<>());
+		}
+
+		/**
+		 * @param parent Histograms of the parent node, or null.
+		 * @param sibling Histograms of the sibling node, or null if the sibling is
+		 *          not yet trained.
+		 * @param own The histograms of this node are added to this map.
+		 */
+		private TransparentRandomTree buildNode(int start, int end, int depth,
+			TIntObjectHashMap<long[]> parent, TIntObjectHashMap<long[]> sibling,
+			TIntObjectHashMap<long[]> own)
+		{
+			long[] classWeights = classWeights(start, end);
+			long totalWeight = sum(classWeights);
+			if (isLeaf(classWeights, totalWeight, depth))
+				return leaf(classWeights, totalWeight);
+			parentHistograms = parent;
+			siblingHistograms = sibling;
+			histograms = own;
+			Split split = findBestSplit(start, end, classWeights, totalWeight);
+			if (split == null)
+				return leaf(classWeights, totalWeight);
+			int middle = partition(start, end, split);
+			TIntObjectHashMap<long[]> first = new TIntObjectHashMap<>();
+			TIntObjectHashMap<long[]> second = new TIntObjectHashMap<>();
+			TransparentRandomTree smallerChild, biggerChild;
+			if (middle - start <= end - middle) {
+				smallerChild = buildNode(start, middle, depth + 1, own, null, first);
+				biggerChild = buildNode(middle, end, depth + 1, own, first, second);
+			}
+			else {
+				biggerChild = buildNode(middle, end, depth + 1, own, null, first);
+				smallerChild = buildNode(start, middle, depth + 1, own, first, second);
+			}
+			return TransparentRandomTree.node(split.feature, split.threshold, smallerChild,
+				biggerChild);
+		}
+
+		@Override
+		protected Split findBestSplit(int start, int end, int feature, long[] classWeights,
+			long totalWeight)
+		{
+			long[] histogram = histogram(start, end, feature);
+			histograms.put(feature, histogram);
+			int numberOfBins = bins.numberOfBins(feature);
+			long[] leftWeights = new long[numberOfClasses];
+			long leftTotal = 0;
+			double bestScore = Double.NEGATIVE_INFINITY;
+			int bestBin = -1;
+			for (int b = 0; b < numberOfBins - 1; b++) {
+				long binTotal = 0;
+				for (int c = 0; c < numberOfClasses; c++) {
+					long w = histogram[b * numberOfClasses + c];
+					leftWeights[c] += w;
+					binTotal += w;
+				}
+				if (binTotal == 0)
+					continue;
+				leftTotal += binTotal;
+				if (leftTotal == totalWeight)
+					break;
+				double leftSquares = 0;
+				double rightSquares = 0;
+				for (int c = 0; c < numberOfClasses; c++) {
+					long left = leftWeights[c];
+					long right = classWeights[c] - left;
+					leftSquares += (double) left * left;
+					rightSquares += (double) right * right;
+				}
+				double score = leftSquares / leftTotal + rightSquares / (totalWeight - leftTotal);
+				if (score > bestScore) {
+					bestScore = score;
+					bestBin = b;
+				}
+			}
+			if (bestBin < 0)
+				return null;
+			return new Split(feature, bins.threshold(feature, bestBin), bestBin, bestScore);
+		}
+
+		private long[] histogram(int start, int end, int feature) {
+			long[] parent = parentHistograms == null ? null : parentHistograms.get(feature);
+			long[] sibling = siblingHistograms == null ? null : siblingHistograms.get(feature);
+			long[] histogram = new long[bins.numberOfBins(feature) * numberOfClasses];
+			if (parent != null && sibling != null) {
+				for (int i = 0; i < histogram.length; i++)
+					histogram[i] = parent[i] - sibling[i];
+			}
+			else {
+				for (int j = start; j < end; j++) {
+					int index = indices[j];
+					histogram[bins.bin(feature, index) * numberOfClasses + classes[index]] +=
+						weights[index];
+				}
+			}
+			return histogram;
+		}
+
+		@Override
+		protected boolean goesToSmallerChild(Split split, int index) {
+			return bins.bin(split.feature, index) <= split.bin;
+		}
+	}
+
+	private static class Split {
+
+		private final int feature;
+
+		private final double threshold;
+
+		/** Bin index of the threshold, only used for the histogram split search. */
+		private final int bin;
+
+		private final double score;
+
+		private Split(int feature, double threshold, int bin, double score) {
+			this.feature = feature;
+			this.threshold = threshold;
+			this.bin = bin;
+			this.score = score;
+		}
+	}
+
+	/**
+	 * Returns a threshold t, such that smaller < t <= bigger holds for the float
+	 * values.
+	 */
+	static float threshold(float smaller, float bigger) {
+		float middle = (float) (((double) smaller + bigger) / 2);
+		return (smaller < middle && middle <= bigger) ? middle : bigger;
+	}
+
+	/**
+	 * Maps a float to an int, such that the order of the ints equals the order of
+	 * the float values. NaN is mapped to values bigger than infinity.
+	 */
+	static int sortableBits(float value) {
+		int bits = Float.floatToIntBits(value);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
+
+	private static boolean isPure(long[] classWeights) {
+		int nonZero = 0;
+		for (long weight : classWeights)
+			if (weight > 0)
+				nonZero++;
+		return nonZero <= 1;
+	}
+
+	private static long sum(long[] values) {
+		long sum = 0;
+		for (long value : values)
+			sum += value;
+		return sum;
+	}
+
+	private static double sumOfSquares(long[] values) {
+		double sum = 0;
+		for (long value : values)
+			sum += (double) value * value;
+		return sum;
+	}
+}
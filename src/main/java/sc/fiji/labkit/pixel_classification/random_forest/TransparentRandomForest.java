@@ -31,8 +31,11 @@ package sc.fiji.labkit.pixel_classification.random_forest;
 
 import hr.irb.fastRandomForest.FastRandomForest;
 import sc.fiji.labkit.pixel_classification.utils.ArrayUtils;
+import weka.classifiers.Classifier;
 import weka.core.Instance;
 
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -43,9 +46,10 @@ import java.util.stream.Stream;
  * nodes, thresholds and parameters used for the classification task.
  * <p>
  * Java reflection is used to extract the parameter from the weka fast random
- * forest.
+ * forest. Alternatively the forest can be trained directly by a
+ * {@link RandomForestTrainer}.
  */
-public class TransparentRandomForest {
+public class TransparentRandomForest implements Serializable {
 
 	private final List<TransparentRandomTree> trees;
 
@@ -59,6 +63,19 @@ public class TransparentRandomForest {
 		return new TransparentRandomForest(initTrees(original));
 	}
 
+	/**
+	 * Returns the {@link TransparentRandomForest} for a classifier, that is
+	 * either a {@link FastRandomForest} or a {@link RandomForestClassifier}.
+	 */
+	public static TransparentRandomForest forClassifier(Classifier classifier) {
+		if (classifier instanceof RandomForestClassifier)
+			return ((RandomForestClassifier) classifier).forest();
+		if (classifier instanceof FastRandomForest)
+			return forFastRandomForest((FastRandomForest) classifier);
+		throw new IllegalArgumentException("Unsupported classifier: " + classifier.getClass()
+			.getName() + ". Only random forests are supported.");
+	}
+
 	private static List<TransparentRandomTree> initTrees(FastRandomForest original) {
 		// NB: Type of bagger is hr.irb.fastRandomForest.FastRfBagging
 		Object bagger = ReflectionUtils.getPrivateField(original, "m_bagger", Object.class);
@@ -71,10 +88,63 @@ public class TransparentRandomForest {
 				Collectors.toList()));
 	}
 
+	/**
+	 * Returns a forest, that contains the trees of all given forests, in the
+	 * given order.
+	 */
+	public static TransparentRandomForest merge(List<TransparentRandomForest> forests) {
+		List<TransparentRandomTree> trees = new ArrayList<>();
+		for (TransparentRandomForest forest : forests)
+			trees.addAll(forest.trees());
+		for (TransparentRandomTree tree : trees)
+			if (tree.numberOfClasses() != trees.get(0).numberOfClasses())
+				throw new IllegalArgumentException("The forests have different numbers of classes.");
+		return new TransparentRandomForest(Collections.unmodifiableList(trees));
+	}
+
 	public List<TransparentRandomTree> trees() {
 		return trees;
 	}
 
+	/**
+	 * Returns an array, where the value at index i is true, if attribute i is
+	 * used by any node of any tree in the forest.
+	 */
+	public boolean[] usedAttributes(int numberOfAttributes) {
+		boolean[] used = new boolean[numberOfAttributes];
+		for (TransparentRandomTree tree : trees)
+			markUsedAttributes(tree, used);
+		return used;
+	}
+
+	private static void markUsedAttributes(TransparentRandomTree node, boolean[] used) {
+		if (node.isLeaf())
+			return;
+		used[node.attributeIndex()] = true;
+		markUsedAttributes(node.smallerChild(), used);
+		markUsedAttributes(node.biggerChild(), used);
+	}
+
+	/**
+	 * Returns an array, where the value at index i is the number of nodes in
+	 * the forest, that split by attribute i. This is a simple measure of the
+	 * importance of the attributes.
+	 */
+	public int[] splitCounts(int numberOfAttributes) {
+		int[] counts = new int[numberOfAttributes];
+		for (TransparentRandomTree tree : trees)
+			countSplits(tree, counts);
+		return counts;
+	}
+
+	private static void countSplits(TransparentRandomTree node, int[] counts) {
+		if (node.isLeaf())
+			return;
+		counts[node.attributeIndex()]++;
+		countSplits(node.smallerChild(), counts);
+		countSplits(node.biggerChild(), counts);
+	}
+
 	public int numberOfClasses() {
 		return trees.isEmpty() ? 0 : trees.get(0).numberOfClasses();
 	}
@@ -31,6 +31,8 @@ package sc.fiji.labkit.pixel_classification.random_forest;
 
 import weka.core.Instance;
 
+import java.io.Serializable;
+
 /**
  * Wraps around a hr.irb.fastRandomForest.FastRandomTree and exposes all the
  * parameters (threshold, children and classification probabilities).
@@ -38,7 +40,7 @@ import weka.core.Instance;
  * Java reflection is used to extract the parameter from the weka fast random
  * forest.
  */
-public class TransparentRandomTree {
+public class TransparentRandomTree implements Serializable {
 
 	private final int attribute;
 
@@ -50,16 +52,27 @@ public class TransparentRandomTree {
 
 	private final double[] classProbabilities;
 
+	private final Long bootstrapSeed;
+
 	private TransparentRandomTree(int attribute, double threshold,
 		TransparentRandomTree smallerChild,
 		TransparentRandomTree biggerChild,
 		double[] classProbabilities)
+	{
+		this(attribute, threshold, smallerChild, biggerChild, classProbabilities, null);
+	}
+
+	private TransparentRandomTree(int attribute, double threshold,
+		TransparentRandomTree smallerChild,
+		TransparentRandomTree biggerChild,
+		double[] classProbabilities, Long bootstrapSeed)
 	{
 		this.attribute = attribute;
 		this.threshold = threshold;
 		this.smallerChild = smallerChild;
 		this.biggerChild = biggerChild;
 		this.classProbabilities = classProbabilities;
+		this.bootstrapSeed = bootstrapSeed;
 	}
 
 	public static TransparentRandomTree leaf(double[] classProbabilities) {
@@ -95,6 +108,26 @@ public class TransparentRandomTree {
 		}
 	}
 
+	/**
+	 * Returns a copy of this tree, that remembers the random seed of the
+	 * bootstrap sample, the tree was trained on.
+	 *
+	 * @see RandomForestTrainer#outOfBagAccuracy
+	 */
+	public TransparentRandomTree withBootstrapSeed(long bootstrapSeed) {
+		return new TransparentRandomTree(attribute, threshold, smallerChild, biggerChild,
+			classProbabilities, bootstrapSeed);
+	}
+
+	/**
+	 * Returns the random seed of the bootstrap sample, the tree was trained on,
+	 * or null if it is unknown. This is only known for trees, that were trained
+	 * by {@link RandomForestTrainer}.
+	 */
+	public Long bootstrapSeed() {
+		return bootstrapSeed;
+	}
+
 	public int attributeIndex() {
 		return attribute;
 	}
@@ -0,0 +1,136 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package sc.fiji.labkit.pixel_classification.classification;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sc.fiji.labkit.pixel_classification.Utils;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.GroupedFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.SingleFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.ChannelSetting;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.GlobalSettings;
+import sc.fiji.labkit.pixel_classification.utils.SingletonContext;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark that compares a {@link CascadeSegmenter} with its full
+ * {@link Segmenter}. The image is 2048x2048 pixels of background, with a few
+ * copies of the nuclei image, such that most pixels are unambiguous.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class CascadeSegmenterBenchmark {
+
+	private final CascadeSegmenter cascade;
+
+	private final Img<FloatType> image;
+
+	public CascadeSegmenterBenchmark() {
+		Img<FloatType> nuclei = ImageJFunctions.convertFloat(Utils.loadImage("nuclei.tif"));
+		LabelRegions<String> labeling = SegmenterTest.loadLabeling("nucleiLabeling.tif");
+		GlobalSettings cheapGlobals = GlobalSettings.default2d()
+			.channels(ChannelSetting.SINGLE)
+			.dimensions(2).sigmas(Arrays.asList(1.0))
+			.build();
+		GlobalSettings fullGlobals = GlobalSettings.default2d()
+			.channels(ChannelSetting.SINGLE)
+			.dimensions(2)
+			.build();
+		cascade = CascadeSegmenter.train(SingletonContext.getInstance(), nuclei, labeling,
+			new FeatureSettings(cheapGlobals, SingleFeatures.identity(), GroupedFeatures.gauss()),
+			new FeatureSettings(fullGlobals, SingleFeatures.identity(), GroupedFeatures.gauss(),
+				GroupedFeatures.differenceOfGaussians(), GroupedFeatures.hessian(),
+				GroupedFeatures.gradient()),
+			0.9);
+		image = embed(nuclei, 2048, 2048);
+	}
+
+	/**
+	 * Returns a big image filled with the minimum of the given image, with copies
+	 * of the given image at a few positions.
+	 */
+	private static Img<FloatType> embed(Img<FloatType> small, long... size) {
+		float background = Float.POSITIVE_INFINITY;
+		for (FloatType value : small)
+			background = Math.min(background, value.get());
+		Img<FloatType> big = ArrayImgs.floats(size);
+		for (FloatType value : big)
+			value.set(background);
+		long[][] positions = { { 100, 100 }, { 700, 300 }, { 1300, 1500 }, { 1800, 900 } };
+		for (long[] position : positions)
+			LoopBuilder.setImages(small, Views.interval(big, Intervals.translate(small,
+				position))).forEachPixel((i, o) -> o.set(i));
+		return big;
+	}
+
+	@Benchmark
+	public Object benchmarkFullSegmenter() {
+		return cascade.fullSegmenter().segment(image);
+	}
+
+	@Benchmark
+	public Object benchmarkCascadeSegmenter() {
+		return cascade.segment(image);
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options options = new OptionsBuilder().include(CascadeSegmenterBenchmark.class
+			.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.classification;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+import org.scijava.Context;
+import sc.fiji.labkit.pixel_classification.Utils;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.GroupedFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.SingleFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.ChannelSetting;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.GlobalSettings;
+import sc.fiji.labkit.pixel_classification.utils.SingletonContext;
+import sc.fiji.labkit.pixel_classification.utils.views.FastViews;
+
+import java.util.Arrays;
+
+/**
+ * Tests {@link CascadeSegmenter}.
+ */
+public class CascadeSegmenterTest {
+
+	private final Img<FloatType> img = ImageJFunctions.convertFloat(Utils.loadImage("nuclei.tif"));
+
+	private final LabelRegions<String> labeling = SegmenterTest.loadLabeling(
+		"nucleiLabeling.tif");
+
+	private final Context context = SingletonContext.getInstance();
+
+	private final CascadeSegmenter cascade = train(0.9);
+
+	@Test
+	public void testAllPixelsCertain() {
+		CascadeSegmenter allCertain = new CascadeSegmenter(cascade.cheapSegmenter(), cascade
+			.fullSegmenter(), 0);
+		Utils.<UnsignedByteType> assertImagesEqual(cascade.cheapSegmenter().segment(img), allCertain
+			.segment(img));
+	}
+
+	@Test
+	public void testAllPixelsUncertain() {
+		CascadeSegmenter allUncertain = new CascadeSegmenter(cascade.cheapSegmenter(), cascade
+			.fullSegmenter(), 1.1);
+		Utils.<UnsignedByteType> assertImagesEqual(cascade.fullSegmenter().segment(img), allUncertain
+			.segment(img));
+	}
+
+	@Test
+	public void testSomePixelsUncertain() {
+		RandomAccessibleInterval<? extends RealType<?>> probabilities = cascade.cheapSegmenter()
+			.predict(img);
+		RandomAccessibleInterval<UnsignedByteType> full = cascade.fullSegmenter().segment(img);
+		RandomAccessibleInterval<UnsignedByteType> expected = ArrayImgs.unsignedBytes(Intervals
+			.dimensionsAsLongArray(img));
+		int numberOfClasses = cascade.classNames().size();
+		LoopBuilder.setImages(FastViews.collapse(probabilities), full, expected).forEachPixel((p,
+			f, e) -> {
+			int best = 0;
+			for (int k = 1; k < numberOfClasses; k++)
+				if (p.get(best).getRealDouble() < p.get(k).getRealDouble()) best = k;
+			e.setInteger(p.get(best).getRealDouble() < cascade.confidenceThreshold() ? f.get()
+				: best);
+		});
+		Utils.<UnsignedByteType> assertImagesEqual(expected, cascade.segment(img));
+	}
+
+	private CascadeSegmenter train(double confidenceThreshold) {
+		GlobalSettings cheapGlobals = GlobalSettings.default2d()
+			.channels(ChannelSetting.SINGLE)
+			.dimensions(2).sigmas(Arrays.asList(1.0))
+			.build();
+		GlobalSettings fullGlobals = GlobalSettings.default2d()
+			.channels(ChannelSetting.SINGLE)
+			.dimensions(2).sigmas(Arrays.asList(1.0, 4.0, 8.0))
+			.build();
+		return CascadeSegmenter.train(context, img, labeling,
+			new FeatureSettings(cheapGlobals, SingleFeatures.identity(), GroupedFeatures.gauss()),
+			new FeatureSettings(fullGlobals, SingleFeatures.identity(), GroupedFeatures.gauss(),
+				GroupedFeatures.hessian()),
+			confidenceThreshold);
+	}
+}
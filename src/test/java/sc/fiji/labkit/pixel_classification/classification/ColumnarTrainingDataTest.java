@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.classification;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link ColumnarTrainingData}.
+ */
+public class ColumnarTrainingDataTest {
+
+	@Test
+	public void testAddLabeledImage() {
+		// feature 0 is the pixel index, feature 1 is 100 + pixel index
+		Img<FloatType> featureStack = ArrayImgs.floats(new float[] { 0, 1, 2, 3, 100, 101, 102,
+			103 }, 2, 2, 2);
+		Img<UnsignedByteType> labels = ArrayImgs.unsignedBytes(new byte[] { 0, 2, 1, 0 }, 2, 2);
+		ColumnarTrainingData data = new ColumnarTrainingData(2);
+		data.add(featureStack, labels);
+		assertEquals(2, data.size());
+		assertArrayEquals(new float[] { 1, 2, 101, 102 }, data.features(), 0);
+		assertArrayEquals(new int[] { 1, 0 }, data.classes());
+	}
+
+	@Test
+	public void testGrowAndConvert() {
+		int numberOfSamples = 5000;
+		ColumnarTrainingData data = new ColumnarTrainingData(3);
+		Img<FloatType> vector = ArrayImgs.floats(3);
+		for (int i = 0; i < numberOfSamples; i++) {
+			int j = 0;
+			for (FloatType value : vector)
+				value.setReal(i * 10 + j++);
+			data.add(Views.collapse(vector).randomAccess().get(), i % 2);
+		}
+		assertEquals(numberOfSamples, data.size());
+		float[] features = data.features();
+		assertEquals(3 * numberOfSamples, features.length);
+		assertEquals(4321 * 10 + 2, features[2 * numberOfSamples + 4321], 0);
+		Instances instances = data.toInstances(attributes(3));
+		assertEquals(numberOfSamples, instances.numInstances());
+		assertEquals(3, instances.classIndex());
+		assertEquals(4321 * 10 + 1, instances.get(4321).value(1), 0);
+		assertEquals(1, instances.get(4321).classValue(), 0);
+	}
+
+	@Test
+	public void testReservoirSampling() {
+		SamplingPolicy policy = new SamplingPolicy(100, SamplingPolicy.Balance.NONE, 42);
+		ColumnarTrainingData data = new ColumnarTrainingData(1, policy);
+		for (int i = 0; i < 10000; i++)
+			add(data, i, 0);
+		for (int i = 0; i < 10; i++)
+			add(data, -i, 1);
+		assertEquals(110, data.size());
+		int[] classes = data.classes();
+		float[] features = data.features();
+		double sum = 0;
+		for (int i = 0; i < classes.length; i++)
+			if (classes[i] == 0)
+				sum += features[i];
+		// the kept samples are a uniform random subset of 0 ... 9999
+		assertEquals(5000, sum / 100, 1000);
+		assertEquals(10, Arrays.stream(classes).filter(c -> c == 1).count());
+	}
+
+	@Test
+	public void testUndersample() {
+		SamplingPolicy policy = new SamplingPolicy(100, SamplingPolicy.Balance.UNDERSAMPLE, 42);
+		ColumnarTrainingData data = new ColumnarTrainingData(1, policy);
+		for (int i = 0; i < 1000; i++)
+			add(data, i, i % 50 == 0 ? 1 : 0);
+		int[] classes = data.classes();
+		assertEquals(40, classes.length);
+		assertEquals(20, Arrays.stream(classes).filter(c -> c == 1).count());
+		assertArrayEquals(data.features(), data.features(), 0);
+	}
+
+	@Test
+	public void testSamplingPolicyJson() {
+		SamplingPolicy policy = new SamplingPolicy(1000, SamplingPolicy.Balance.UNDERSAMPLE, 7);
+		assertEquals(policy, SamplingPolicy.fromJson(policy.toJson()));
+		assertTrue(SamplingPolicy.unlimited().isUnlimited());
+		assertFalse(policy.isUnlimited());
+	}
+
+	private static void add(ColumnarTrainingData data, float value, int classIndex) {
+		Img<FloatType> vector = ArrayImgs.floats(new float[] { value }, 1);
+		data.add(Views.collapse(vector).randomAccess().get(), classIndex);
+	}
+
+	private static List<Attribute> attributes(int numberOfFeatures) {
+		List<Attribute> attributes = new ArrayList<>();
+		for (int i = 0; i < numberOfFeatures; i++)
+			attributes.add(new Attribute("feature" + i));
+		attributes.add(new Attribute("class", Arrays.asList("a", "b")));
+		return attributes;
+	}
+}
@@ -35,11 +35,13 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgView;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImgs;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelRegions;
 import net.imglib2.test.ImgLib2Assert;
 import sc.fiji.labkit.pixel_classification.RevampUtils;
 import sc.fiji.labkit.pixel_classification.pixel_feature.filter.deprecated.gauss.GaussFeature;
+import sc.fiji.labkit.pixel_classification.random_forest.RandomForestClassifier;
 import sc.fiji.labkit.pixel_classification.pixel_feature.settings.ChannelSetting;
 import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSetting;
 import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
@@ -55,11 +57,13 @@ import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.scijava.Context;
+import weka.classifiers.Classifier;
 import weka.classifiers.meta.RandomCommittee;
 
 import java.io.IOException;
@@ -108,14 +112,29 @@ public class SegmenterTest {
 		ImgLib2Assert.assertImageEqualsRealType(expectedProbabilityMap, probabilityMap, 0.001);
 	}
 
+	@Test
+	public void testSegmentIntoPlanarImg() {
+		// NB: ArrayImg and PlanarImg outputs are written by different code paths.
+		Segmenter segmenter = trainClassifier();
+		segmenter.setUseGpu(useGpu);
+		RandomAccessibleInterval<UnsignedByteType> expected = segmenter.segment(img);
+		Img<UnsignedByteType> result = PlanarImgs.unsignedBytes(Intervals.dimensionsAsLongArray(img));
+		segmenter.segment(result, Views.extendBorder(img));
+		Utils.<UnsignedByteType> assertImagesEqual(expected, result);
+	}
+
 	private Segmenter trainClassifier() {
+		return trainClassifier(Trainer.initRandomForest());
+	}
+
+	private Segmenter trainClassifier(Classifier classifier) {
 		GlobalSettings globals = GlobalSettings.default2d()
 			.channels(ChannelSetting.SINGLE)
 			.dimensions(img.numDimensions()).sigmas(Arrays.asList(1.0, 4.0, 8.0))
 			.build();
 		FeatureSettings featureSettings = new FeatureSettings(globals, SingleFeatures.identity(),
 			GroupedFeatures.gauss());
-		return Trainer.train(context, img, labeling, featureSettings);
+		return Trainer.train(context, img, labeling, featureSettings, classifier);
 	}
 
 	private void checkExpected(RandomAccessibleInterval<? extends IntegerType<?>> result,
@@ -144,6 +163,36 @@ public class SegmenterTest {
 		Utils.<IntegerType> assertImagesEqual(result, result2);
 	}
 
+	@Test
+	public void testRandomForestClassifier() {
+		Segmenter segmenter = trainClassifier(new RandomForestClassifier());
+		segmenter.setUseGpu(useGpu);
+		RandomAccessibleInterval<? extends IntegerType<?>> result = segmenter.segment(img);
+		checkExpected(result, segmenter.classNames());
+		Segmenter segmenter2 = Segmenter.fromJson(context, segmenter.toJsonTree());
+		segmenter2.setUseGpu(useGpu);
+		Utils.<IntegerType> assertImagesEqual(result, segmenter2.segment(img));
+	}
+
+	@Test
+	public void testIncrementalRandomForestClassifier() {
+		assumeFalse(useGpu);
+		// NB: The first training isn't incremental. The segmenter needs to switch
+		// to the incremental prediction, when the update fraction is set later.
+		RandomForestClassifier classifier = new RandomForestClassifier();
+		Segmenter segmenter = trainClassifier(classifier);
+		classifier.setUpdateFraction(0.25);
+		for (int update = 0; update < 3; update++) {
+			Trainer.of(segmenter).trainLabeledImage(img, labeling);
+			RandomAccessibleInterval<? extends IntegerType<?>> result = segmenter.segment(img);
+			checkExpected(result, segmenter.classNames());
+			// Compare to a segmenter, that prepares the same forest from scratch.
+			Segmenter reference = Segmenter.fromJson(context, segmenter.toJsonTree());
+			ImgLib2Assert.assertImageEqualsRealType(reference.predict(img), segmenter.predict(img),
+				1e-5);
+		}
+	}
+
 	@Ignore("Only fast random forest is supported")
 	@Test
 	public void testDifferentWekaClassifiers() {
@@ -156,7 +205,7 @@ public class SegmenterTest {
 		checkExpected(result, segmenter.classNames());
 	}
 
-	private static LabelRegions<String> loadLabeling(String file) {
+	static LabelRegions<String> loadLabeling(String file) {
 		Img<? extends IntegerType<?>> img = ImageJFunctions.wrapByte(Utils.loadImage(file));
 		final ImgLabeling<String, IntType> labeling = new ImgLabeling<>(RevampUtils.createImage(img,
 			new IntType()));
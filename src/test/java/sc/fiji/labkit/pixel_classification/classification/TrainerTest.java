@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.classification;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.ValuePair;
+import org.junit.Test;
+import org.scijava.Context;
+import sc.fiji.labkit.pixel_classification.Utils;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.GroupedFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.SingleFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.GlobalSettings;
+import sc.fiji.labkit.pixel_classification.utils.SingletonContext;
+import sc.fiji.labkit.pixel_classification.utils.views.FastViews;
+
+/**
+ * Tests {@link Trainer}.
+ */
+public class TrainerTest {
+
+	private final Context context = SingletonContext.getInstance();
+
+	@Test
+	public void testLabelSparseTraining() {
+		// The image is split into two blocks of 512 x 512 pixels. Only the
+		// first block is labeled, and some labels are close to the block border.
+		Img<FloatType> image = ArrayImgs.floats(1000, 40);
+		Random random = new Random(42);
+		image.forEach(pixel -> pixel.setReal(random.nextFloat()));
+		LabelRegions<String> labeling = labeling(image);
+		FeatureSettings settings = new FeatureSettings(GlobalSettings.default2d()
+			.sigmas(Arrays.asList(1.0, 4.0, 8.0)).build(),
+			SingleFeatures.identity(), GroupedFeatures.gauss());
+		List<String> classNames = Arrays.asList("background", "foreground");
+		Segmenter sparse = new Segmenter(context, classNames, settings, Trainer
+			.initRandomForest());
+		Trainer.of(sparse).trainLabeledImage(image, labeling);
+		Segmenter full = new Segmenter(context, classNames, settings, Trainer.initRandomForest());
+		Trainer.of(full).trainLabeledFeatures(FastViews.collapse(full.features().apply(image)),
+			labeling);
+		Utils.<UnsignedByteType> assertImagesEqual(full.segment(image), sparse.segment(image));
+	}
+
+	@Test
+	public void testTrainLabeledImages() {
+		// The memory budget forces each block into its own batch.
+		testTrainLabeledImages(1000, 512, 0);
+	}
+
+	@Test
+	public void testTrainLabeledImagesMultipleBlocks() {
+		// The images are split into three blocks, the labels span the first two.
+		// The memory budget allows two blocks per batch.
+		testTrainLabeledImages(1500, 1000, 2);
+	}
+
+	/**
+	 * Trains one segmenter with {@link Trainer#trainLabeledImages} and one with
+	 * {@link Trainer#trainLabeledImage}. Both add the samples block by block,
+	 * so the results must be equal.
+	 */
+	private void testTrainLabeledImages(long width, long labelWidth, int blocksPerBatch) {
+		List<Img<FloatType>> images = Arrays.asList(randomImage(1, width), randomImage(2, width));
+		FeatureSettings settings = new FeatureSettings(GlobalSettings.default2d()
+			.sigmas(Arrays.asList(1.0, 4.0)).build(),
+			SingleFeatures.identity(), GroupedFeatures.gauss());
+		List<String> classNames = Arrays.asList("background", "foreground");
+		Segmenter parallel = new Segmenter(context, classNames, settings, Trainer
+			.initRandomForest());
+		long memoryBudget = blocksPerBatch * 4L * parallel.features().count() * 512 * 40;
+		Trainer.of(parallel).trainLabeledImages(Arrays.asList(
+			new ValuePair<>(images.get(0), labeling(images.get(0), labelWidth)),
+			new ValuePair<>(images.get(1), labeling(images.get(1), labelWidth))), memoryBudget);
+		Segmenter sequential = new Segmenter(context, classNames, settings, Trainer
+			.initRandomForest());
+		Trainer trainer = Trainer.of(sequential);
+		trainer.start();
+		for (Img<FloatType> image : images)
+			trainer.trainLabeledImage(image, labeling(image, labelWidth));
+		trainer.finish();
+		Img<FloatType> image = randomImage(3, width);
+		Utils.<UnsignedByteType> assertImagesEqual(sequential.segment(image), parallel.segment(
+			image));
+	}
+
+	private static Img<FloatType> randomImage(long seed, long width) {
+		Img<FloatType> image = ArrayImgs.floats(width, 40);
+		Random random = new Random(seed);
+		image.forEach(pixel -> pixel.setReal(random.nextFloat()));
+		return image;
+	}
+
+	private static LabelRegions<String> labeling(Img<FloatType> image) {
+		return labeling(image, 512);
+	}
+
+	/**
+	 * Labels every third column with {@code x < labelWidth}, in the rows 10 to
+	 * 29.
+	 */
+	private static LabelRegions<String> labeling(Img<FloatType> image, long labelWidth) {
+		ImgLabeling<String, IntType> labeling = new ImgLabeling<>(ArrayImgs.ints(image
+			.dimensionsAsLongArray()));
+		RandomAccess<LabelingType<String>> ra = labeling.randomAccess();
+		RandomAccess<FloatType> imageRa = image.randomAccess();
+		for (int x = 0; x < labelWidth; x += 3) {
+			for (int y = 10; y < 30; y++) {
+				imageRa.setPosition(new long[] { x, y });
+				ra.setPosition(imageRa);
+				ra.get().add(imageRa.get().get() < 0.5 ? "background" : "foreground");
+			}
+		}
+		return new LabelRegions<>(labeling);
+	}
+}
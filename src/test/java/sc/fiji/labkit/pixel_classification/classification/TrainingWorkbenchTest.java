@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package sc.fiji.labkit.pixel_classification.classification;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+import org.scijava.Context;
+import sc.fiji.labkit.pixel_classification.Utils;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.GroupedFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.SingleFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.GlobalSettings;
+import sc.fiji.labkit.pixel_classification.random_forest.RandomForestClassifier;
+import sc.fiji.labkit.pixel_classification.random_forest.RandomForestTrainer;
+import sc.fiji.labkit.pixel_classification.utils.SingletonContext;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link TrainingWorkbench}.
+ */
+public class TrainingWorkbenchTest {
+
+	private final Context context = SingletonContext.getInstance();
+
+	private final List<String> classNames = Arrays.asList("background", "foreground");
+
+	private final FeatureSettings settings = new FeatureSettings(GlobalSettings.default2d()
+		.sigmas(Arrays.asList(1.0, 2.0)).build(), SingleFeatures.identity(), GroupedFeatures
+			.gauss());
+
+	private final Img<FloatType> image = image();
+
+	private final LabelRegions<String> labeling = labeling(image);
+
+	@Test
+	public void testSegmenter() {
+		RandomForestTrainer trainer = new RandomForestTrainer(20, 2, 1);
+		TrainingWorkbench workbench = new TrainingWorkbench(context, classNames, settings);
+		workbench.addLabeledImage(image, labeling);
+		assertEquals(3, workbench.numberOfFeatures());
+		Segmenter expected = new Segmenter(context, classNames, settings,
+			new RandomForestClassifier(trainer));
+		Trainer.of(expected).trainLabeledImage(image, labeling);
+		Utils.<UnsignedByteType> assertImagesEqual(expected.segment(image), workbench.segmenter(
+			trainer).segment(image));
+	}
+
+	@Test
+	public void testCrossValidate() {
+		TrainingWorkbench workbench = new TrainingWorkbench(context, classNames, settings);
+		workbench.addLabeledImage(image, labeling);
+		List<RandomForestTrainer> trainers = Arrays.asList(new RandomForestTrainer(10, 2, 1),
+			new RandomForestTrainer(10, 3, 1, RandomForestTrainer.SplitMode.EXACT, 1));
+		List<TrainingWorkbench.Evaluation> evaluations = workbench.crossValidate(trainers, 4);
+		assertEquals(2, evaluations.size());
+		for (TrainingWorkbench.Evaluation evaluation : evaluations) {
+			assertEquals(4, evaluation.foldAccuracies().length);
+			assertTrue(evaluation.accuracy() > 0.9);
+		}
+		TrainingWorkbench.Evaluation single = workbench.crossValidate(trainers.get(0), 4);
+		assertArrayEquals(evaluations.get(0).foldAccuracies(), single.foldAccuracies(), 0);
+	}
+
+	@Test
+	public void testCrossValidateFewSamples() {
+		// Three background and two foreground samples in five folds. Each fold
+		// must get exactly one sample, no fold may be empty.
+		ImgLabeling<String, IntType> fewLabels = new ImgLabeling<>(ArrayImgs.ints(image
+			.dimensionsAsLongArray()));
+		RandomAccess<LabelingType<String>> ra = fewLabels.randomAccess();
+		for (int x = 0; x < 5; x++) {
+			ra.setPosition(new long[] { 10 * x, 0 });
+			ra.get().add(x < 3 ? "background" : "foreground");
+		}
+		TrainingWorkbench workbench = new TrainingWorkbench(context, classNames, settings);
+		workbench.addLabeledImage(image, new LabelRegions<>(fewLabels));
+		TrainingWorkbench.Evaluation evaluation = workbench.crossValidate(new RandomForestTrainer(
+			10, 2, 1), 5);
+		for (double accuracy : evaluation.foldAccuracies())
+			assertTrue(accuracy == 0 || accuracy == 1);
+		assertFalse(Double.isNaN(evaluation.accuracy()));
+	}
+
+	@Test
+	public void testSelectFeatures() {
+		// The labels only depend on the pixel value, the identity feature is
+		// sufficient.
+		FeatureSettings settings = new FeatureSettings(GlobalSettings.default2d()
+			.sigmas(Arrays.asList(2.0, 4.0)).build(), SingleFeatures.identity(), GroupedFeatures
+				.gauss(), GroupedFeatures.differenceOfGaussians());
+		TrainingWorkbench workbench = new TrainingWorkbench(context, classNames, settings);
+		workbench.addLabeledImage(image, labeling);
+		RandomForestTrainer trainer = new RandomForestTrainer(20, 2, 1);
+		TrainingWorkbench.FeatureSelection selection = workbench.selectFeatures(trainer, 2, 0.05);
+		assertEquals(Arrays.asList(SingleFeatures.identity()), selection.settings().features());
+		assertEquals(3, selection.importances().length);
+		assertTrue(selection.accuracy() >= selection.fullAccuracy() - 0.05);
+		Segmenter segmenter = workbench.segmenter(trainer, selection);
+		assertEquals(selection.settings(), segmenter.settings());
+		assertEquals(1, segmenter.features().count());
+	}
+
+	private static Img<FloatType> image() {
+		Img<FloatType> image = ArrayImgs.floats(100, 100);
+		Random random = new Random(42);
+		image.forEach(pixel -> pixel.setReal(random.nextFloat()));
+		return image;
+	}
+
+	private static LabelRegions<String> labeling(Img<FloatType> image) {
+		// The label of a pixel is defined by its value, a forest trained on the
+		// identity feature classifies the labeled pixels almost perfectly.
+		ImgLabeling<String, IntType> labeling = new ImgLabeling<>(ArrayImgs.ints(image
+			.dimensionsAsLongArray()));
+		RandomAccess<LabelingType<String>> ra = labeling.randomAccess();
+		RandomAccess<FloatType> imageRa = image.randomAccess();
+		for (int x = 0; x < 100; x += 2) {
+			for (int y = 0; y < 100; y += 5) {
+				imageRa.setPosition(new long[] { x, y });
+				ra.setPosition(imageRa);
+				ra.get().add(imageRa.get().get() < 0.5 ? "background" : "foreground");
+			}
+		}
+		return new LabelRegions<>(labeling);
+	}
+}
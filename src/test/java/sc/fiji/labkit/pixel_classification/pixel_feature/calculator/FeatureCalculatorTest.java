@@ -96,6 +96,25 @@ public class FeatureCalculatorTest {
 		Utils.assertImagesEqual(ArrayImgs.floats(new float[] { 44, 45, 14, 15 }, 1, 1, 4), out);
 	}
 
+	@Test
+	public void testUsedChannels() {
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.channels(ChannelSetting.multiple(2))
+			.sigmas(1.0)
+			.addFeatures(add_42, add_12)
+			.build();
+		calculator.setUseGpu(useGpu);
+		Img<FloatType> input = ArrayImgs.floats(new float[] { 2, 3 }, 1, 1, 2);
+		RandomAccessibleInterval<FloatType> out = calculator.apply(Views.extendBorder(input),
+			calculator.outputIntervalFromInput(input), index -> index == 3);
+		assertEquals(15, out.getAt(0, 0, 3).get(), 0);
+		if (!useGpu) {
+			// The features that are not used are not calculated.
+			assertEquals(0, out.getAt(0, 0, 0).get(), 0);
+			assertEquals(0, out.getAt(0, 0, 1).get(), 0);
+		}
+	}
+
 	public static class AddValue extends AbstractFeatureOp implements FeatureOp {
 
 		@Parameter
@@ -43,6 +43,7 @@ import net.imglib2.converter.Converters;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import sc.fiji.labkit.pixel_classification.Utils;
+import sc.fiji.labkit.pixel_classification.pixel_feature.calculator.FeatureCalculator;
 import sc.fiji.labkit.pixel_classification.pixel_feature.filter.gradient.DerivedNormalDistribution;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
@@ -53,12 +54,14 @@ import net.imglib2.util.Localizables;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import java.util.Random;
 import java.util.function.DoubleUnaryOperator;
 import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class FeatureInputTest {
 
@@ -109,6 +112,42 @@ public class FeatureInputTest {
 		assertNotSame(cache.derivedGauss(2.0, 1, 0, 0), cache.derivedGauss(2.0, 1, 0));
 	}
 
+	@Test
+	public void testFloatPrecision() {
+		// The deviation of the float intermediates is in the range of the float
+		// rounding error.
+		FeatureInput floats = new FeatureInput(image, target, new double[] { 1, 1, 2 }, true);
+		assertTrue(floats.isFloatPrecision());
+		ImgLib2Assert.assertImageEqualsRealType(cache.gauss(2.0), floats.gauss(2.0), 1e-6);
+		ImgLib2Assert.assertImageEqualsRealType(cache.derivedGauss(2.0, 1, 0, 0), floats
+			.derivedGauss(2.0, 1, 0, 0), 1e-6);
+		ImgLib2Assert.assertImageEqualsRealType(cache.derivedGauss(2.0, 1, 1, 0), floats
+			.derivedGauss(2.0, 1, 1, 0), 1e-6);
+		ImgLib2Assert.assertImageEqualsRealType(cache.derivedGauss(2.0, 0, 0, 2), floats
+			.derivedGauss(2.0, 0, 0, 2), 1e-6);
+	}
+
+	@Test
+	public void testFloatPrecisionFeatures() {
+		// Each feature channel of the float path has a PSNR of at least 90 dB,
+		// compared to the double path.
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.dimensions(3)
+			.sigmas(1.0, 2.0, 4.0)
+			.addFeatures(GroupedFeatures.gauss(), GroupedFeatures.differenceOfGaussians(),
+				GroupedFeatures.gradient(), GroupedFeatures.laplacian(), GroupedFeatures.hessian())
+			.build();
+		Img<FloatType> input = ArrayImgs.floats(20, 20, 20);
+		Random random = new Random(42);
+		input.forEach(pixel -> pixel.setReal(random.nextFloat() * 1000));
+		RandomAccessibleInterval<FloatType> expected = calculator.apply(input);
+		calculator.setFloatPrecision(true);
+		RandomAccessibleInterval<FloatType> actual = calculator.apply(input);
+		for (int i = 0; i < calculator.count(); i++)
+			Utils.assertImagesEqual(90, Views.hyperSlice(expected, 3, i), Views.hyperSlice(actual,
+				3, i));
+	}
+
 	private RandomAccessibleInterval<DoubleType> deriveY() {
 		RandomAccessibleInterval<DoubleType> expected = create(target);
 		Kernel1D[] kernels = {
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark that compares the accumulation of leaf probabilities in
+ * {@link CpuRandomForestCore}, for random forests with 4 to 8 classes. The
+ * "Loop" benchmarks use {@link LoopCore}, which runs the same code, except
+ * that the unrolled accumulation is replaced by a plain loop.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CpuRandomForestCoreBenchmark {
+
+	private static final int numberOfFeatures = 10;
+
+	private static final int numberOfInstances = 10000;
+
+	@Param({ "4", "5", "6", "8" })
+	private int numberOfClasses;
+
+	private CpuRandomForestCore core;
+
+	private LoopCore loopCore;
+
+	private float[][] instances;
+
+	private float[] features;
+
+	private float[] distributions;
+
+	@Setup
+	public void setup() throws Exception {
+		Random random = new Random(42);
+		FastRandomForest forest = new FastRandomForest();
+		forest.setSeed(1);
+		forest.setNumTrees(200);
+		forest.buildClassifier(randomDataset(random, 1000));
+		TransparentRandomForest transparentForest = TransparentRandomForest.forFastRandomForest(
+			forest);
+		core = new CpuRandomForestCore(transparentForest);
+		loopCore = new LoopCore(transparentForest);
+		instances = new float[numberOfInstances][numberOfFeatures];
+		features = new float[numberOfFeatures * numberOfInstances];
+		for (int i = 0; i < numberOfInstances; i++)
+			for (int f = 0; f < numberOfFeatures; f++) {
+				float value = random.nextFloat();
+				instances[i][f] = value;
+				features[f * numberOfInstances + i] = value;
+			}
+		distributions = new float[numberOfInstances * numberOfClasses];
+	}
+
+	private Instances randomDataset(Random random, int size) {
+		ArrayList<Attribute> attributes = new ArrayList<>();
+		for (int f = 0; f < numberOfFeatures; f++)
+			attributes.add(new Attribute("feature" + f));
+		ArrayList<String> classes = new ArrayList<>();
+		for (int c = 0; c < numberOfClasses; c++)
+			classes.add("class" + c);
+		attributes.add(new Attribute("class", classes));
+		Instances dataset = new Instances("", attributes, size);
+		dataset.setClassIndex(numberOfFeatures);
+		for (int i = 0; i < size; i++) {
+			double[] values = new double[numberOfFeatures + 1];
+			for (int f = 0; f < numberOfFeatures; f++)
+				values[f] = random.nextDouble();
+			values[numberOfFeatures] = random.nextInt(numberOfClasses);
+			dataset.add(new DenseInstance(1.0, values));
+		}
+		return dataset;
+	}
+
+	@Benchmark
+	public Object benchmarkDistributionForInstance() {
+		return distributionForInstance(core);
+	}
+
+	@Benchmark
+	public Object benchmarkDistributionForInstanceLoop() {
+		return distributionForInstance(loopCore);
+	}
+
+	@Benchmark
+	public Object benchmarkDistributionForInstances() {
+		return distributionForInstances(core);
+	}
+
+	@Benchmark
+	public Object benchmarkDistributionForInstancesLoop() {
+		return distributionForInstances(loopCore);
+	}
+
+	private Object distributionForInstance(CpuRandomForestCore core) {
+		float[] distribution = new float[numberOfClasses];
+		for (float[] instance : instances)
+			core.distributionForInstance(instance, distribution);
+		return distribution;
+	}
+
+	private Object distributionForInstances(CpuRandomForestCore core) {
+		core.distributionForInstances(features, 0, numberOfInstances, numberOfInstances,
+			distributions);
+		return distributions;
+	}
+
+	/**
+	 * {@link CpuRandomForestCore} that accumulates the leaf probabilities with
+	 * a plain loop for all numbers of classes.
+	 */
+	private static class LoopCore extends CpuRandomForestCore {
+
+		private LoopCore(TransparentRandomForest forest) {
+			super(forest);
+		}
+
+		@Override
+		void accumulate(float[] distributions, int distributionBase, int numClasses,
+			float[] probabilities, int probabilitiesIndex)
+		{
+			for (int k = 0; k < numClasses; k++)
+				distributions[distributionBase + k] += probabilities[probabilitiesIndex + k];
+		}
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options options = new OptionsBuilder().include(CpuRandomForestCoreBenchmark.class
+			.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
@@ -29,13 +29,18 @@
 
 package sc.fiji.labkit.pixel_classification.random_forest;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.img.array.ArrayImgs;
 import sc.fiji.labkit.pixel_classification.utils.ArrayUtils;
 import org.junit.Test;
 import weka.core.Attribute;
@@ -44,9 +49,11 @@ import weka.core.Instance;
 import weka.core.Instances;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 /**
- * Tests {@link CpuRandomForestCore} by comparing the results to
+ * Tests {@link CpuRandomForestCore} and the other {@link RandomForestCore}
+ * implementations by comparing the results to
  * {@link FastRandomForest} on randomly generated datasets.
  */
 public class CpuRandomForestCoreTest {
@@ -59,10 +66,29 @@ public class CpuRandomForestCoreTest {
 		// of only one leaf. That's why we test it separately.
 		TransparentRandomTree tree = TransparentRandomTree.leaf(new double[] { 0.1, 0.9 });
 		TransparentRandomForest forest = new TransparentRandomForest(Collections.singletonList(tree));
-		CpuRandomForestCore prediction = new CpuRandomForestCore(forest);
-		float[] distribution = new float[2];
-		prediction.distributionForInstance(new float[1], distribution);
-		assertArrayEquals(new float[] { 0.1f, 0.9f }, distribution, 0);
+		for (RandomForestCore prediction : cores(forest)) {
+			float[] distribution = new float[2];
+			prediction.distributionForInstance(new float[1], distribution);
+			assertArrayEquals(new float[] { 0.1f, 0.9f }, distribution, 0);
+		}
+	}
+
+	@Test
+	public void testThresholdBoundaries() {
+		// Values equal to the threshold and NaN must go to the bigger child.
+		TransparentRandomTree tree = TransparentRandomTree.node(0, 0.5,
+			TransparentRandomTree.leaf(new double[] { 1, 0 }),
+			TransparentRandomTree.leaf(new double[] { 0, 1 }));
+		TransparentRandomForest forest = new TransparentRandomForest(Collections.singletonList(tree));
+		for (RandomForestCore prediction : cores(forest)) {
+			float[] distribution = new float[2];
+			prediction.distributionForInstance(new float[] { Math.nextDown(0.5f) }, distribution);
+			assertArrayEquals(new float[] { 1, 0 }, distribution, 0);
+			prediction.distributionForInstance(new float[] { 0.5f }, distribution);
+			assertArrayEquals(new float[] { 0, 1 }, distribution, 0);
+			prediction.distributionForInstance(new float[] { Float.NaN }, distribution);
+			assertArrayEquals(new float[] { 0, 1 }, distribution, 0);
+		}
 	}
 
 	@Test
@@ -80,6 +106,50 @@ public class CpuRandomForestCoreTest {
 		trainAndCompareRandomForests(4);
 	}
 
+	@Test
+	public void testMappedRandomForest() throws Exception {
+		Instances trainingDataset = randomDataset(10, 3, 64);
+		Instances testDataset = randomDataset(10, 3, 100);
+		FastRandomForest fastRf = trainFastRandomForest(trainingDataset);
+		Path file = Files.createTempFile("random-forest", ".bin");
+		// NB: A memory mapped file can't be deleted on Windows, while it's mapped.
+		file.toFile().deleteOnExit();
+		CpuRandomForestPrediction.save(fastRf, 10, file);
+		MappedRandomForestCore core = MappedRandomForestCore.open(file);
+		assertEquals(10, core.numberOfFeatures());
+		compareRandomForests(testDataset, fastRf, core);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongNumberOfChannels() throws Exception {
+		// NB: The planar feature stack is read with a stride derived from the
+		// number of channels, therefore a wrong number must be rejected.
+		FastRandomForest fastRf = trainFastRandomForest(randomDataset(10, 3, 64));
+		CpuRandomForestPrediction prediction = new CpuRandomForestPrediction(fastRf, 10);
+		prediction.segment(ArrayImgs.floats(5, 5, 11), ArrayImgs.unsignedBytes(5, 5));
+	}
+
+	@Test
+	public void testCompressedLeafs() throws Exception {
+		Instances trainingDataset = randomDataset(10, 3, 64);
+		Instances testDataset = randomDataset(10, 3, 100);
+		FastRandomForest fastRf = trainFastRandomForest(trainingDataset);
+		TransparentRandomForest forest = TransparentRandomForest.forFastRandomForest(fastRf);
+		compareRandomForests(testDataset, fastRf, new CompressedLeafRandomForestCore(forest,
+			CompressedLeafRandomForestCore.LeafEncoding.FLOAT16), 1e-3f);
+		compareRandomForests(testDataset, fastRf, new CompressedLeafRandomForestCore(forest,
+			CompressedLeafRandomForestCore.LeafEncoding.INT8), 5e-3f);
+	}
+
+	@Test
+	public void testHalfPrecisionConversion() {
+		for (float value : new float[] { 0, 1, 0.5f, 1 / 3f, 0.1f, 1e-5f, 1e-7f })
+			assertEquals(value, CompressedLeafRandomForestCore.fromHalf(CompressedLeafRandomForestCore
+				.toHalf(value)), value * 0x1p-11f + 0x1p-25f);
+		assertEquals(0x3c00, CompressedLeafRandomForestCore.toHalf(1));
+		assertEquals(0x3555, CompressedLeafRandomForestCore.toHalf(1 / 3f));
+	}
+
 	public void trainAndCompareRandomForests(int numberOfClasses) throws Exception {
 		// test a random forest with small trees (tree heights roughly 0 and 1)
 		trainAndCompareRandomForests(10, numberOfClasses, 4);
@@ -101,8 +171,25 @@ public class CpuRandomForestCoreTest {
 		Instances trainingDataset = randomDataset(numberOfFeatures, numberOfClasses, numberOfInstances);
 		Instances testDataset = randomDataset(numberOfFeatures, numberOfClasses, 100);
 		FastRandomForest fastRf = trainFastRandomForest(trainingDataset);
-		CpuRandomForestCore cpuRf = new CpuRandomForestCore(fastRf);
-		compareRandomForests(testDataset, fastRf, cpuRf);
+		TransparentRandomForest forest = TransparentRandomForest.forFastRandomForest(fastRf);
+		for (RandomForestCore cpuRf : cores(forest))
+			compareRandomForests(testDataset, fastRf, cpuRf);
+	}
+
+	/**
+	 * Returns all the {@link RandomForestCore} implementations for the given
+	 * forest. The second {@link CpuRandomForestCore} uses the blocked node order
+	 * for all trees. The {@link ChunkedRandomForestCore} uses very small chunks,
+	 * such that the trees are split into multiple chunks.
+	 */
+	private static List<RandomForestCore> cores(TransparentRandomForest forest) {
+		long maxTreeSize = forest.trees().stream().mapToLong(tree -> CpuRandomForestCore
+			.storageSize(tree, forest.numberOfClasses())).max().orElse(0);
+		return Arrays.asList(
+			new CpuRandomForestCore(forest),
+			new CpuRandomForestCore(forest, 0),
+			new QuickScorerRandomForestCore(forest),
+			new ChunkedRandomForestCore(forest, 2 * maxTreeSize));
 	}
 
 	private Instances randomDataset(int numberOfFeatures, int numberOfClasses,
@@ -130,15 +217,56 @@ public class CpuRandomForestCoreTest {
 	}
 
 	private void compareRandomForests(Instances data, FastRandomForest fastRf,
-		CpuRandomForestCore cpuRf) throws Exception
+		RandomForestCore cpuRf) throws Exception
+	{
+		compareRandomForests(data, fastRf, cpuRf, 1e-6f);
+	}
+
+	private void compareRandomForests(Instances data, FastRandomForest fastRf,
+		RandomForestCore cpuRf, float delta) throws Exception
 	{
 		for (Instance instance : data) {
 			float[] expected = ArrayUtils.toFloats(fastRf.distributionForInstance(instance));
 			float[] distribution = new float[cpuRf.numberOfClasses()];
 			float[] featureVector = ArrayUtils.toFloats(instance.toDoubleArray());
 			cpuRf.distributionForInstance(featureVector, distribution);
-			assertArrayEquals(expected, distribution, 1e-6f);
+			assertArrayEquals(expected, distribution, delta);
+		}
+		compareDistributionForInstances(data, fastRf, cpuRf, delta);
+	}
+
+	/**
+	 * Evaluates all instances as one block with
+	 * {@link RandomForestCore#distributionForInstances} and compares the
+	 * results to {@link FastRandomForest}. Also checks that
+	 * {@link RandomForestCore#classesForInstances} returns the maxima of these
+	 * distributions.
+	 */
+	private void compareDistributionForInstances(Instances data, FastRandomForest fastRf,
+		RandomForestCore cpuRf, float delta) throws Exception
+	{
+		int numberOfClasses = cpuRf.numberOfClasses();
+		int numberOfInstances = data.size();
+		int numberOfAttributes = data.numAttributes();
+		int offset = 3;
+		int stride = numberOfInstances + 5;
+		float[] features = new float[offset + numberOfAttributes * stride];
+		for (int i = 0; i < numberOfInstances; i++)
+			for (int a = 0; a < numberOfAttributes; a++)
+				features[offset + a * stride + i] = (float) data.get(i).value(a);
+		float[] distributions = new float[numberOfInstances * numberOfClasses];
+		cpuRf.distributionForInstances(features, offset, stride, numberOfInstances, distributions);
+		for (int i = 0; i < numberOfInstances; i++) {
+			float[] expected = ArrayUtils.toFloats(fastRf.distributionForInstance(data.get(i)));
+			float[] distribution = Arrays.copyOfRange(distributions, i * numberOfClasses, (i + 1) *
+				numberOfClasses);
+			assertArrayEquals(expected, distribution, delta);
 		}
+		int[] classes = new int[numberOfInstances];
+		cpuRf.classesForInstances(features, offset, stride, numberOfInstances, classes);
+		for (int i = 0; i < numberOfInstances; i++)
+			assertEquals(ArrayUtils.findMax(distributions, i * numberOfClasses, numberOfClasses),
+				classes[i]);
 	}
 
 	private Instances emptyDataset(int numberOfFeatures, int numberOfClasses) {
@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.parallel.Parallelization;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sc.fiji.labkit.pixel_classification.Utils;
+import sc.fiji.labkit.pixel_classification.classification.Segmenter;
+import sc.fiji.labkit.pixel_classification.classification.Trainer;
+import sc.fiji.labkit.pixel_classification.pixel_feature.filter.GroupedFeatures;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.FeatureSettings;
+import sc.fiji.labkit.pixel_classification.pixel_feature.settings.GlobalSettings;
+import sc.fiji.labkit.pixel_classification.utils.SingletonContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark that compares the depth first node order with the blocked node
+ * order of {@link CpuRandomForestCore}. The random forest is trained on the
+ * drosophila 3d dataset, which results in trees with a height of 20 and more.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class CpuRandomForestLayoutBenchmark {
+
+	private final CpuRandomForestCore depthFirst;
+
+	private final CpuRandomForestCore blocked;
+
+	private final float[] features;
+
+	private final int numberOfPixels;
+
+	private final float[] distributions;
+
+	public CpuRandomForestLayoutBenchmark() {
+		RandomAccessibleInterval<FloatType> image = Utils.loadImageFloatType("drosophila_3d.tif");
+		LabelRegions<?> labelRegions = asLabelRegions(Utils.loadImageFloatType(
+			"drosophila_3d_labeling.tif"));
+		FeatureSettings featureSettings = new FeatureSettings(GlobalSettings.default3d().build(),
+			GroupedFeatures.gauss(),
+			GroupedFeatures.differenceOfGaussians(),
+			GroupedFeatures.hessian(),
+			GroupedFeatures.gradient());
+		Segmenter segmenter = Trainer.train(SingletonContext.getInstance(), image, labelRegions,
+			featureSettings);
+		TransparentRandomForest forest = TransparentRandomForest.forClassifier(segmenter
+			.getClassifier());
+		depthFirst = new CpuRandomForestCore(forest, Integer.MAX_VALUE);
+		blocked = new CpuRandomForestCore(forest, 0);
+		RandomAccessibleInterval<FloatType> featureStack = Parallelization.runSingleThreaded(
+			() -> segmenter.features().apply(Views.extendBorder(image), new FinalInterval(64, 64,
+				16)));
+		numberOfPixels = 64 * 64 * 16;
+		features = new float[(int) Intervals.numElements(featureStack)];
+		int i = 0;
+		for (FloatType value : Views.flatIterable(featureStack))
+			features[i++] = value.get();
+		distributions = new float[numberOfPixels * forest.numberOfClasses()];
+	}
+
+	@Benchmark
+	public Object benchmarkDepthFirst() {
+		depthFirst.distributionForInstances(features, 0, numberOfPixels, numberOfPixels,
+			distributions);
+		return distributions;
+	}
+
+	@Benchmark
+	public Object benchmarkBlocked() {
+		blocked.distributionForInstances(features, 0, numberOfPixels, numberOfPixels,
+			distributions);
+		return distributions;
+	}
+
+	private static LabelRegions<?> asLabelRegions(
+		RandomAccessibleInterval<? extends RealType<?>> labeling)
+	{
+		Img<UnsignedByteType> ints = ArrayImgs.unsignedBytes(Intervals.dimensionsAsLongArray(
+			labeling));
+		RandomAccessibleInterval<LabelingType<String>> labelingTypes = new ImgLabeling<>(ints);
+		LoopBuilder.setImages(labeling, labelingTypes).multiThreaded().forEachPixel((i, o) -> {
+			if (i.getRealFloat() != 0) o.add(i.toString());
+		});
+		return new LabelRegions<>(labelingTypes);
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options options = new OptionsBuilder().include(CpuRandomForestLayoutBenchmark.class
+			.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,323 @@
+/*-
+ * #%L
+ * The implementation of the pixel classification algorithm, that is used the Labkit image segmentation plugin for Fiji.
+ * %%
+ * Copyright (C) 2017 - 2024 Matthias Arzt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package sc.fiji.labkit.pixel_classification.random_forest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.imglib2.parallel.Parallelization;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link RandomForestTrainer}.
+ */
+public class RandomForestTrainerTest {
+
+	private static final int NUMBER_OF_FEATURES = 5;
+
+	private static final int NUMBER_OF_CLASSES = 3;
+
+	@Test
+	public void testLearnsThresholds() {
+		testLearnsThresholds(RandomForestTrainer.SplitMode.EXACT);
+	}
+
+	@Test
+	public void testHistogramSplitMode() {
+		testLearnsThresholds(RandomForestTrainer.SplitMode.HISTOGRAM);
+	}
+
+	private void testLearnsThresholds(RandomForestTrainer.SplitMode splitMode) {
+		// The class is defined by thresholds on feature 2, all other features are noise.
+		float[] trainingFeatures = randomFeatures(new Random(1), 1000);
+		float[] testFeatures = randomFeatures(new Random(2), 200);
+		TransparentRandomForest forest = new RandomForestTrainer(50, 2, 1, splitMode).train(
+			trainingFeatures, NUMBER_OF_FEATURES, classes(trainingFeatures), NUMBER_OF_CLASSES);
+		assertEquals(50, forest.trees().size());
+		assertEquals(NUMBER_OF_CLASSES, forest.numberOfClasses());
+		int[] expected = classes(testFeatures);
+		int[] actual = new int[expected.length];
+		new CpuRandomForestCore(forest).classesForInstances(testFeatures, 0, expected.length,
+			expected.length, actual);
+		int correct = 0;
+		for (int i = 0; i < expected.length; i++)
+			if (expected[i] == actual[i])
+				correct++;
+		assertTrue(correct >= 0.95 * expected.length);
+	}
+
+	@Test
+	public void testPureTrainingDataIsClassifiedCorrectly() {
+		// Trees are grown until the leafs are pure. Each instance is in the
+		// bootstrap sample of most of the trees. Therefore the training data
+		// is classified correctly.
+		float[] features = randomFeatures(new Random(3), 300);
+		int[] classes = classes(features);
+		TransparentRandomForest forest = new RandomForestTrainer().train(features,
+			NUMBER_OF_FEATURES, classes, NUMBER_OF_CLASSES);
+		assertEquals(200, forest.trees().size());
+		int[] actual = new int[classes.length];
+		new CpuRandomForestCore(forest).classesForInstances(features, 0, classes.length,
+			classes.length, actual);
+		assertArrayEquals(classes, actual);
+	}
+
+	@Test
+	public void testIndependentOfNumberOfThreads() {
+		float[] features = randomFeatures(new Random(4), 500);
+		int[] classes = new Random(5).ints(500, 0, NUMBER_OF_CLASSES).toArray();
+		RandomForestTrainer trainer = new RandomForestTrainer(20, 2, 42);
+		TransparentRandomForest multiThreaded = trainer.train(features, NUMBER_OF_FEATURES, classes,
+			NUMBER_OF_CLASSES);
+		TransparentRandomForest singleThreaded = Parallelization.runSingleThreaded(() -> trainer
+			.train(features, NUMBER_OF_FEATURES, classes, NUMBER_OF_CLASSES));
+		float[] expected = distributions(multiThreaded, features, 500);
+		float[] actual = distributions(singleThreaded, features, 500);
+		assertArrayEquals(expected, actual, 0);
+	}
+
+	@Test
+	public void testMaxDepth() {
+		float[] features = randomFeatures(new Random(6), 300);
+		int[] classes = new Random(8).ints(300, 0, NUMBER_OF_CLASSES).toArray();
+		for (RandomForestTrainer.SplitMode splitMode : RandomForestTrainer.SplitMode.values()) {
+			TransparentRandomForest forest = new RandomForestTrainer(10, 2, 1, splitMode, 3).train(
+				features, NUMBER_OF_FEATURES, classes, NUMBER_OF_CLASSES);
+			for (TransparentRandomTree tree : forest.trees())
+				assertEquals(3, tree.height());
+		}
+	}
+
+	@Test
+	public void testOutOfBagAccuracy() {
+		RandomForestTrainer trainer = new RandomForestTrainer(30, 2, 1);
+		float[] features = randomFeatures(new Random(9), 500);
+		int[] classes = classes(features);
+		TransparentRandomForest forest = trainer.train(features, NUMBER_OF_FEATURES, classes,
+			NUMBER_OF_CLASSES);
+		assertTrue(trainer.outOfBagAccuracy(forest, features, NUMBER_OF_FEATURES, classes,
+			NUMBER_OF_CLASSES) > 0.95);
+		// Random classes can't be predicted, although the forest fits the training data.
+		int[] randomClasses = new Random(10).ints(500, 0, NUMBER_OF_CLASSES).toArray();
+		TransparentRandomForest overfitted = trainer.train(features, NUMBER_OF_FEATURES,
+			randomClasses, NUMBER_OF_CLASSES);
+		assertTrue(trainer.outOfBagAccuracy(overfitted, features, NUMBER_OF_FEATURES,
+			randomClasses, NUMBER_OF_CLASSES) < 0.5);
+	}
+
+	@Test
+	public void testOutOfBagAccuracyOfUpdatedForest() {
+		RandomForestTrainer trainer = new RandomForestTrainer(30, 2, 1);
+		float[] features = randomFeatures(new Random(9), 500);
+		int[] randomClasses = new Random(10).ints(500, 0, NUMBER_OF_CLASSES).toArray();
+		TransparentRandomForest forest = trainer.train(features, NUMBER_OF_FEATURES,
+			randomClasses, NUMBER_OF_CLASSES);
+		double expected = trainer.outOfBagAccuracy(forest, features, NUMBER_OF_FEATURES,
+			randomClasses, NUMBER_OF_CLASSES);
+		// Merged tree ranges give exactly the same estimate.
+		TransparentRandomForest merged = TransparentRandomForest.merge(Arrays.asList(trainer
+			.trainTreeRange(0, 10, features, NUMBER_OF_FEATURES, randomClasses, NUMBER_OF_CLASSES),
+			trainer.trainTreeRange(10, 20, features, NUMBER_OF_FEATURES, randomClasses,
+				NUMBER_OF_CLASSES)));
+		assertEquals(expected, trainer.outOfBagAccuracy(merged, features, NUMBER_OF_FEATURES,
+			randomClasses, NUMBER_OF_CLASSES), 0);
+		// Retrained trees use different bootstrap samples. If these were not
+		// known, the in-bag instances would be counted as out-of-bag, and the
+		// overfitted forest would seem to predict the random classes.
+		TransparentRandomForest updated = trainer.retrainTrees(forest, 5, 20, 1, features,
+			NUMBER_OF_FEATURES, randomClasses, NUMBER_OF_CLASSES);
+		assertTrue(trainer.outOfBagAccuracy(updated, features, NUMBER_OF_FEATURES, randomClasses,
+			NUMBER_OF_CLASSES) < 0.5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOutOfBagAccuracyUnknownBootstrapSeed() {
+		RandomForestTrainer trainer = new RandomForestTrainer(30, 2, 1);
+		float[] features = randomFeatures(new Random(9), 500);
+		int[] classes = classes(features);
+		TransparentRandomForest forest = trainer.train(features, NUMBER_OF_FEATURES, classes,
+			NUMBER_OF_CLASSES);
+		TransparentRandomTree seedless = TransparentRandomTree.leaf(new double[NUMBER_OF_CLASSES]);
+		TransparentRandomForest merged = TransparentRandomForest.merge(Arrays.asList(forest,
+			new TransparentRandomForest(Arrays.asList(seedless))));
+		trainer.outOfBagAccuracy(merged, features, NUMBER_OF_FEATURES, classes,
+			NUMBER_OF_CLASSES);
+	}
+
+	@Test
+	public void testSplitCounts() {
+		float[] features = randomFeatures(new Random(11), 300);
+		TransparentRandomForest forest = new RandomForestTrainer(10, NUMBER_OF_FEATURES, 1)
+			.train(features, NUMBER_OF_FEATURES, classes(features), NUMBER_OF_CLASSES);
+		// All features are tested at each node, therefore only feature 2 is used.
+		int[] splitCounts = forest.splitCounts(NUMBER_OF_FEATURES);
+		for (int f = 0; f < NUMBER_OF_FEATURES; f++)
+			assertEquals(f == 2, splitCounts[f] > 0);
+		assertTrue(splitCounts[2] >= 20);
+	}
+
+	@Test
+	public void testTrainTreeRange() {
+		float[] features = randomFeatures(new Random(12), 300);
+		int[] classes = new Random(13).ints(300, 0, NUMBER_OF_CLASSES).toArray();
+		RandomForestTrainer trainer = new RandomForestTrainer(10, 2, 7);
+		TransparentRandomForest expected = trainer.train(features, NUMBER_OF_FEATURES, classes,
+			NUMBER_OF_CLASSES);
+		TransparentRandomForest merged = TransparentRandomForest.merge(Arrays.asList(trainer
+			.trainTreeRange(0, 4, features, NUMBER_OF_FEATURES, classes, NUMBER_OF_CLASSES),
+			Parallelization.runSingleThreaded(() -> trainer.trainTreeRange(4, 6, features,
+				NUMBER_OF_FEATURES, classes, NUMBER_OF_CLASSES))));
+		assertEquals(10, merged.trees().size());
+		assertArrayEquals(distributions(expected, features, 300), distributions(merged, features,
+			300), 0);
+	}
+
+	@Test
+	public void testRetrainTrees() {
+		float[] features = randomFeatures(new Random(7), 200);
+		int[] classes = classes(features);
+		RandomForestTrainer trainer = new RandomForestTrainer(20, 2, 1);
+		TransparentRandomForest forest = trainer.train(features, NUMBER_OF_FEATURES, classes,
+			NUMBER_OF_CLASSES);
+		TransparentRandomForest updated = trainer.retrainTrees(forest, 18, 5, 1, features,
+			NUMBER_OF_FEATURES, classes, NUMBER_OF_CLASSES);
+		assertEquals(20, updated.trees().size());
+		for (int i = 0; i < 20; i++) {
+			boolean replaced = i >= 18 || i < 3;
+			assertEquals(!replaced, forest.trees().get(i) == updated.trees().get(i));
+		}
+	}
+
+	@Test
+	public void testIncrementalUpdate() {
+		float[] features = randomFeatures(new Random(8), 300);
+		int[] classes = classes(features);
+		RandomForestClassifier classifier = new RandomForestClassifier(new RandomForestTrainer(20,
+			2, 1));
+		classifier.setUpdateFraction(0.25);
+		assertEquals(5, classifier.numberOfTreesPerUpdate());
+		classifier.train(features, NUMBER_OF_FEATURES, classes, NUMBER_OF_CLASSES);
+		TransparentRandomForest forest = classifier.forest();
+		ChunkedRandomForestCore core = new ChunkedRandomForestCore(forest,
+			CpuRandomForestCore.MAX_ARRAY_SIZE, classifier.numberOfTreesPerUpdate());
+		for (int update = 0; update < 3; update++) {
+			classifier.train(features, NUMBER_OF_FEATURES, classes, NUMBER_OF_CLASSES);
+			TransparentRandomForest updated = classifier.forest();
+			int replaced = 0;
+			for (int i = 0; i < 20; i++)
+				if (forest.trees().get(i) != updated.trees().get(i))
+					replaced++;
+			assertEquals(5, replaced);
+			core = core.update(updated);
+			float[] expected = new float[300 * NUMBER_OF_CLASSES];
+			new CpuRandomForestCore(updated).distributionForInstances(features, 0, 300, 300,
+				expected);
+			float[] actual = new float[300 * NUMBER_OF_CLASSES];
+			core.distributionForInstances(features, 0, 300, 300, actual);
+			assertArrayEquals(expected, actual, 1e-6f);
+			forest = updated;
+		}
+	}
+
+	@Test
+	public void testBinnedFeatures() {
+		int numberOfInstances = 10000;
+		float[] features = randomFeatures(new Random(6), numberOfInstances);
+		// feature 0 has only few distinct values, each of them gets its own bin
+		for (int i = 0; i < numberOfInstances; i++)
+			features[i] = i % 7;
+		features[1] = Float.NaN;
+		BinnedFeatures bins = BinnedFeatures.create(features, NUMBER_OF_FEATURES, numberOfInstances);
+		assertEquals(7, bins.numberOfBins(0));
+		for (int f = 0; f < NUMBER_OF_FEATURES; f++) {
+			int numberOfBins = bins.numberOfBins(f);
+			assertTrue(numberOfBins <= BinnedFeatures.MAX_BINS);
+			for (int i = 0; i < numberOfInstances; i++) {
+				float value = features[f * numberOfInstances + i];
+				int bin = bins.bin(f, i);
+				assertTrue(bin < numberOfBins);
+				for (int b = 0; b < numberOfBins - 1; b++)
+					assertEquals(bin <= b, value < bins.threshold(f, b));
+			}
+		}
+	}
+
+	@Test
+	public void testBinnedFeaturesRareValue() {
+		// The quantiles are calculated from a sample, that skips instance 1.
+		// The rare value still needs to get its own bin.
+		int numberOfInstances = 200000;
+		float[] features = new float[numberOfInstances];
+		features[1] = 1;
+		BinnedFeatures bins = BinnedFeatures.create(features, 1, numberOfInstances);
+		assertEquals(2, bins.numberOfBins(0));
+		assertEquals(0, bins.bin(0, 0));
+		assertEquals(1, bins.bin(0, 1));
+	}
+
+	@Test
+	public void testSortableBits() {
+		float[] values = { Float.NEGATIVE_INFINITY, -3, -0.5f, -Float.MIN_VALUE, 0,
+			Float.MIN_VALUE, 1, 2.5f, Float.POSITIVE_INFINITY, Float.NaN };
+		for (int i = 0; i < values.length - 1; i++)
+			assertTrue(RandomForestTrainer.sortableBits(values[i]) < RandomForestTrainer
+				.sortableBits(values[i + 1]));
+	}
+
+	private static float[] randomFeatures(Random random, int numberOfInstances) {
+		float[] features = new float[NUMBER_OF_FEATURES * numberOfInstances];
+		for (int i = 0; i < features.length; i++)
+			features[i] = random.nextFloat();
+		return features;
+	}
+
+	private static int[] classes(float[] features) {
+		int numberOfInstances = features.length / NUMBER_OF_FEATURES;
+		int[] classes = new int[numberOfInstances];
+		for (int i = 0; i < numberOfInstances; i++) {
+			float value = features[2 * numberOfInstances + i];
+			classes[i] = value < 0.3f ? 0 : value < 0.6f ? 1 : 2;
+		}
+		return classes;
+	}
+
+	private static float[] distributions(TransparentRandomForest forest, float[] features,
+		int numberOfInstances)
+	{
+		float[] distributions = new float[numberOfInstances * NUMBER_OF_CLASSES];
+		new CpuRandomForestCore(forest).distributionForInstances(features, 0, numberOfInstances,
+			numberOfInstances, distributions);
+		return distributions;
+	}
+}